@@ -2,9 +2,11 @@ package com.iodice.mmsexport;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
@@ -17,11 +19,11 @@ import android.graphics.drawable.TransitionDrawable;
 import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.BaseAdapter;
 import android.widget.GridView;
 import android.widget.ImageView;
@@ -40,11 +42,20 @@ import android.widget.ImageView;
  * 
  */
 @SuppressLint("InflateParams")
-public class AsyncImageAdapter extends BaseAdapter {
+public class AsyncImageAdapter extends BaseAdapter implements
+		ImageSession.Listener {
 	/**
-	 * {@link AsyncImageAdapter#mContext} An array of image IDs to load
+	 * {@link AsyncImageAdapter#mImgIDs} The image IDs to load. The session may
+	 * grow while the adapter is in use
 	 */
-	private ArrayList<String> mImgIDs;
+	private ImageSession mImgIDs;
+
+	/**
+	 * {@link AsyncImageAdapter#mCount} The number of session IDs the adapter
+	 * has been told about. Only changed on the main thread, so the grid
+	 * always sees a count that matches its last data set change
+	 */
+	private int mCount;
 
 	/**
 	 * {@link AsyncImageAdapter#mContext} A context that hosts this adapter
@@ -71,20 +82,46 @@ public class AsyncImageAdapter extends BaseAdapter {
 	private GridView mImageGridView;
 
 	/**
-	 * {@link AsyncImageAdapter#mMemoryCache} An image cache. Images are
-	 * accessed by a string representation of the key at which they can be found
-	 * from the {@link AsyncImageAdapter#MMS_PART_URI} content provider. The
-	 * cache is static so that the cache persists whenever the activity is
-	 * destroyed
+	 * {@link AsyncImageAdapter#VISIBLE_MARGIN_ROWS} Queued thumbnail decodes
+	 * for cells more than this many rows outside of the visible range are
+	 * dropped
+	 */
+	private static final int VISIBLE_MARGIN_ROWS = 2;
+
+	/**
+	 * {@link AsyncImageAdapter#mFirstVisible} The first visible position of
+	 * the grid, as of the last scroll event
+	 */
+	private int mFirstVisible = 0;
+
+	/**
+	 * {@link AsyncImageAdapter#mThumbnailCache} An image cache. Images are
+	 * accessed by the key at which they can be found from the
+	 * {@link AsyncImageAdapter#MMS_PART_URI} content provider, and the size
+	 * bucket they were decoded for
+	 */
+	private final ThumbnailCache mThumbnailCache = ThumbnailCache
+			.getInstance();
+
+	/**
+	 * {@link AsyncImageAdapter#MAX_IN_FLIGHT} The most thumbnail decodes
+	 * tracked by {@link AsyncImageAdapter#sInFlight} at once
+	 */
+	private static final int MAX_IN_FLIGHT = 64;
+
+	/**
+	 * {@link AsyncImageAdapter#sInFlight} Thumbnail decodes that are running,
+	 * keyed by {@link ThumbnailCache#getKey(String, int)}. A cell and a
+	 * buffer request that want the same thumbnail share a single decode
 	 */
-	private static LruCache<String, Bitmap> mMemoryCache = null;
+	private static final InFlightRequests<Bitmap> sInFlight = new InFlightRequests<Bitmap>(
+			MAX_IN_FLIGHT);
 
 	/**
-	 * {@link AsyncImageAdapter#mAskedToBuffer} A set that tracks which images
-	 * have been requested to buffer before being viewed. There are no repeat
-	 * requests, otherwise we may overload the OS with duplicate buffer requests
+	 * {@link AsyncImageAdapter#mDisplayed} The cached bitmap each cell is
+	 * showing, so it is not handed to the {@link BitmapPool} while on screen
 	 */
-	private static Set<String> mAskedToBuffer = new HashSet<String>();
+	private final Map<ImageView, Bitmap> mDisplayed = new WeakHashMap<ImageView, Bitmap>();
 
 	/**
 	 * {@link AsyncImageAdapter#mIsSelected} A boolean array that tracks whether
@@ -105,46 +142,49 @@ public class AsyncImageAdapter extends BaseAdapter {
 	MultiTouchDetectorListener mTouchListener;
 
 	public AsyncImageAdapter() {
-		final int maxMemory;
-		final int cacheSize;
-
 		mTouchListener = new MultiTouchDetectorListener();
-		if (mMemoryCache == null) {
-			/*
-			 * Get max available VM memory, exceeding this amount will throw an
-			 * OutOfMemory exception. Stored in kilobytes as LruCache takes an
-			 * int in its constructor.
-			 */
-			maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-			cacheSize = maxMemory / 8;
-			mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
-				@Override
-				protected int sizeOf(String key, Bitmap bitmap) {
-					/*
-					 * The cache size will be measured in kilobytes rather than
-					 * number of items.
-					 */
-					return bitmap.getByteCount() / 1024;
-				}
-			};
-		}
 	}
 
-	public void addBitmapToMemoryCache(String key, Bitmap bitmap) {
-		if (key == null || bitmap == null)
+	/**
+	 * @return The size bucket of thumbnails in the grid as it is currently
+	 *         laid out. See {@link ThumbnailCache#getBucket(int)}
+	 */
+	private int getThumbnailBucket() {
+		return ThumbnailCache.getBucket(ImageUtils.getThumbnailSize(mContext,
+				mImageGridView.getNumColumns()));
+	}
+
+	/**
+	 * Supplies the image IDs to load. The adapter listens to the session, and
+	 * IDs added to it later are appended without resetting the selection. Pass
+	 * null to stop listening
+	 * 
+	 * @param session
+	 */
+	public void setImageSession(ImageSession session) {
+		if (mImgIDs != null)
+			mImgIDs.removeListener(this);
+		if (session == null)
 			return;
-		if (getBitmapFromMemCache(key) == null) {
-			mMemoryCache.put(key, bitmap);
-		}
+
+		this.mImgIDs = session;
+		mImgIDs.addListener(this);
+		if (mIsSelected == null)
+			mIsSelected = new boolean[0];
+		onImagesAdded(session.size());
 	}
 
-	public Bitmap getBitmapFromMemCache(String key) {
-		return mMemoryCache.get(key);
+	@Override
+	public void onImagesAdded(int newSize) {
+		if (newSize <= mCount)
+			return;
+		mIsSelected = Arrays.copyOf(mIsSelected, newSize);
+		mCount = newSize;
+		notifyDataSetChanged();
 	}
 
-	public void setImageIDs(ArrayList<String> imgIDs) {
-		this.mImgIDs = imgIDs;
-		mIsSelected = new boolean[mImgIDs.size()];
+	@Override
+	public void onComplete() {
 	}
 
 	public void setPlaceholderBitmap(Bitmap bitmap) {
@@ -157,6 +197,53 @@ public class AsyncImageAdapter extends BaseAdapter {
 
 	public void setGridView(GridView gridView) {
 		this.mImageGridView = gridView;
+		mImageGridView.setOnScrollListener(new AbsListView.OnScrollListener() {
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem,
+					int visibleItemCount, int totalItemCount) {
+				if (firstVisibleItem == mFirstVisible)
+					return;
+				mFirstVisible = firstVisibleItem;
+				dropOffScreenWork(firstVisibleItem, firstVisibleItem
+						+ visibleItemCount - 1);
+			}
+		});
+	}
+
+	/**
+	 * Removes queued thumbnail decodes for cells that have scrolled well out
+	 * of view. If the user scrolls back, the cells are requested again
+	 * 
+	 * @param firstVisible
+	 *            The first visible position
+	 * @param lastVisible
+	 *            The last visible position
+	 */
+	private void dropOffScreenWork(int firstVisible, int lastVisible) {
+		int margin = VISIBLE_MARGIN_ROWS
+				* Math.max(1, mImageGridView.getNumColumns());
+		final int keepFrom = firstVisible - margin;
+		final int keepTo = lastVisible + margin;
+
+		TaskScheduler.THUMBNAIL.cancelMatching(new PriorityExecutor.KeyFilter() {
+			@Override
+			public boolean matches(Object key) {
+				BitmapWorkerTask task;
+				if (key instanceof BitmapWorkerTask == false)
+					return false;
+				task = (BitmapWorkerTask) key;
+				if (task.isOwnedBy(AsyncImageAdapter.this) == false
+						|| (task.mPosition >= keepFrom && task.mPosition <= keepTo))
+					return false;
+				/* so that loadBitmap knows to request the cell again */
+				task.cancel(true);
+				return true;
+			}
+		});
 	}
 
 	/**
@@ -197,6 +284,7 @@ public class AsyncImageAdapter extends BaseAdapter {
 	public void bufferAhead(int numToBuffer) {
 		int lastVisible;
 		int lastIndex;
+		int bucket = getThumbnailBucket();
 		BitmapBufferTask cacheTask = new BitmapBufferTask();
 		ArrayList<String> toBuffer = new ArrayList<String>();
 
@@ -208,17 +296,29 @@ public class AsyncImageAdapter extends BaseAdapter {
 		if (lastIndex - lastVisible < numToBuffer)
 			numToBuffer = lastIndex - lastVisible;
 
-		/* make sure to not repeat buffer requests by checking mAskedToBuffer */
+		/* skip images that are cached, or are being decoded right now */
 		for (int i = lastVisible + 1; i < lastVisible + numToBuffer; i++) {
-			if (mAskedToBuffer.contains(mImgIDs.get(i)) == true)
+			if (sInFlight.contains(ThumbnailCache.getKey(mImgIDs.get(i),
+					bucket)))
 				continue;
-			if (getBitmapFromMemCache(mImgIDs.get(i)) == null) {
+			if (mThumbnailCache.get(mImgIDs.get(i), bucket) == null)
 				toBuffer.add(mImgIDs.get(i));
-				mAskedToBuffer.add(mImgIDs.get(i));
-			}
 		}
-		if (toBuffer.size() > 0)
-			cacheTask.execute(toBuffer.toArray(new String[toBuffer.size()]));
+		if (toBuffer.size() == 0)
+			return;
+
+		/* a newer buffer request supersedes any that have not started yet */
+		TaskScheduler.PREFETCH.cancelMatching(new PriorityExecutor.KeyFilter() {
+			@Override
+			public boolean matches(Object key) {
+				return key instanceof BitmapBufferTask
+						&& ((BitmapBufferTask) key)
+								.isOwnedBy(AsyncImageAdapter.this);
+			}
+		});
+		cacheTask.executeOnExecutor(TaskScheduler.PREFETCH.withKey(
+					cacheTask, PriorityExecutor.PRIORITY_LOW), toBuffer
+					.toArray(new String[toBuffer.size()]));
 	}
 
 	/**
@@ -254,7 +354,7 @@ public class AsyncImageAdapter extends BaseAdapter {
 
 	@Override
 	public int getCount() {
-		return mImgIDs.size();
+		return mCount;
 	}
 
 	@Override
@@ -295,6 +395,17 @@ public class AsyncImageAdapter extends BaseAdapter {
 		notifyDataSetChanged();
 	}
 
+	/**
+	 * Replaces the selection, updating the grid once
+	 * 
+	 * @param selected
+	 *            One flag per position. Positions past its end are deselected
+	 */
+	public void setSelection(boolean[] selected) {
+		mIsSelected = Arrays.copyOf(selected, mIsSelected.length);
+		notifyDataSetChanged();
+	}
+
 	/**
 	 * Launches a background task to load an image from disk. Initially the view
 	 * is populated with a placeholder, however, an async task will load up the
@@ -305,24 +416,79 @@ public class AsyncImageAdapter extends BaseAdapter {
 	 */
 	private void loadBitmap(String imgID, ImageView imageView, int position) {
 		final BitmapWorkerTask task;
+		final BitmapWorkerTask pendingTask;
 		final AsyncDrawable asyncDrawable;
-		final Bitmap bitmap = getBitmapFromMemCache(imgID);
+		final Bitmap bitmap = mThumbnailCache.acquire(imgID,
+				getThumbnailBucket());
 
 		cancelIfBusyOnOtherWork(imgID, imageView);
+		pendingTask = getBitmapWorkerTask(imageView);
 		if (bitmap != null) {
 			imageView.setImageBitmap(bitmap);
+			setDisplayedBitmap(imageView, bitmap);
+			/* the cell holds it now */
+			BitmapPool.getInstance().release(bitmap);
+		} else if (pendingTask != null && pendingTask.isCancelled() == false
+				&& pendingTask.getStatus() != AsyncTask.Status.FINISHED
+				&& imgID.equals(pendingTask.mImgID)) {
+			/* this cell is already waiting on a decode of the same image */
+			return;
 		} else {
-			task = new BitmapWorkerTask(imageView, position);
+			task = new BitmapWorkerTask(imageView, imgID, position);
 			asyncDrawable = new AsyncDrawable(mContext.getResources(),
 					mPlaceHolderBitmap, task);
 			imageView.setImageDrawable(asyncDrawable);
-			task.execute(imgID);
+			setDisplayedBitmap(imageView, null);
+			task.executeOnExecutor(TaskScheduler.THUMBNAIL.withKey(task,
+					PriorityExecutor.PRIORITY_HIGH), imgID);
 		}
 	}
 
+	/**
+	 * Records the cached bitmap a cell is showing, and lets go of the one it
+	 * showed before
+	 * 
+	 * @param bitmap
+	 *            The bitmap now shown, or null if the cell shows a placeholder
+	 */
+	private void setDisplayedBitmap(ImageView imageView, Bitmap bitmap) {
+		BitmapPool pool = BitmapPool.getInstance();
+		pool.retain(bitmap);
+		pool.release(mDisplayed.put(imageView, bitmap));
+	}
+
+	/**
+	 * Lets go of every bitmap the grid's cells are showing. Call once the
+	 * grid's views are gone, so evicted thumbnails can be reused
+	 */
+	public void releaseDisplayedBitmaps() {
+		BitmapPool pool = BitmapPool.getInstance();
+		for (Bitmap bitmap : mDisplayed.values())
+			pool.release(bitmap);
+		mDisplayed.clear();
+	}
+
+	/**
+	 * Drops every thumbnail decode and prefetch request this adapter has
+	 * queued but not started yet
+	 */
+	public void cancelPendingWork() {
+		PriorityExecutor.KeyFilter ownedByThis = new PriorityExecutor.KeyFilter() {
+			@Override
+			public boolean matches(Object key) {
+				return key instanceof BitmapWorkerTask
+						&& ((BitmapWorkerTask) key)
+								.isOwnedBy(AsyncImageAdapter.this);
+			}
+		};
+		TaskScheduler.THUMBNAIL.cancelMatching(ownedByThis);
+		TaskScheduler.PREFETCH.cancelMatching(ownedByThis);
+	}
+
 	/**
 	 * Cancels an ImageView's associated work, if there is any, to avoid any in
-	 * progress work that is occuring in the case the view is recycled
+	 * progress work that is occuring in the case the view is recycled. Work
+	 * that has not started yet is removed from the decode queue
 	 * 
 	 * @param imgID
 	 * @param imageView
@@ -335,8 +501,10 @@ public class AsyncImageAdapter extends BaseAdapter {
 		if (bitmapWorkerTask != null) {
 			bitmapImgID = bitmapWorkerTask.mImgID;
 			/* work is being done on another image -- cancel it! */
-			if (imgID.equals(bitmapImgID) == false)
+			if (imgID.equals(bitmapImgID) == false) {
+				TaskScheduler.THUMBNAIL.cancel(bitmapWorkerTask);
 				bitmapWorkerTask.cancel(true);
+			}
 		}
 	}
 
@@ -379,33 +547,56 @@ public class AsyncImageAdapter extends BaseAdapter {
 		private final WeakReference<ImageView> imageViewReference;
 		private String mImgID;
 		private int mPosition;
+		protected int mBucket;
 
-		public BitmapWorkerTask(ImageView imageView, int position) {
+		public BitmapWorkerTask(ImageView imageView, String imgID,
+				int position) {
 			/*
 			 * Use a WeakReference to ensure the ImageView can be garbage
 			 * collected
 			 */
 			imageViewReference = new WeakReference<ImageView>(imageView);
+			mImgID = imgID;
 			mPosition = position;
 		}
 
+		public boolean isOwnedBy(AsyncImageAdapter adapter) {
+			return AsyncImageAdapter.this == adapter;
+		}
+
 		/**
-		 * Decode image in background.
+		 * Decode image in background. Cached thumbnails, including larger ones
+		 * that can be scaled down, are used before the content provider. If
+		 * the same thumbnail is already being decoded, the result of that
+		 * decode is used instead
 		 */
 		@Override
 		protected Bitmap doInBackground(String... params) {
-			Bitmap bmp;
+			final String imgID = params[0];
+			final int bucket = getThumbnailBucket();
+
 			if (isCancelled())
 				return null;
-			mImgID = params[0];
-			synchronized (mMemoryCache) {
-				bmp = getBitmapFromMemCache(mImgID);
-			}
-			if (bmp != null)
-				return bmp;
-			
-			return ImageUtils.getImageFromContentProvider(MMS_PART_URI + "/"
-					+ mImgID, true, mImageGridView.getNumColumns(), mContext);
+			mImgID = imgID;
+			mBucket = bucket;
+			return sInFlight.get(ThumbnailCache.getKey(imgID, bucket),
+					new Callable<Bitmap>() {
+						@Override
+						public Bitmap call() {
+							Bitmap bitmap = mThumbnailCache.load(mContext,
+									imgID, bucket);
+
+							if (bitmap != null)
+								return bitmap;
+							bitmap = ThumbnailCache.scaleToBucket(ImageUtils
+									.getThumbnailFromContentProvider(
+											MMS_PART_URI + "/" + imgID, bucket,
+											mContext), bucket);
+							mThumbnailCache.putToDisk(mContext, imgID, bucket,
+									bitmap);
+							return bitmap;
+						}
+					});
 		}
 
 		@Override
@@ -413,10 +604,23 @@ public class AsyncImageAdapter extends BaseAdapter {
 			TransitionDrawable transitionDrawable;
 			Drawable[] layers;
 			final ImageView imageView;
+			final Bitmap cached;
 			Resources res = mContext.getResources();
 			int transDuration = res.getInteger(R.integer.image_fade_duration);
 
-			addBitmapToMemoryCache(mImgID, bitmap);
+			/* the decode failed, or was dropped from the queue */
+			if (bitmap == null)
+				return;
+
+			/*
+			 * a buffer request may have cached this thumbnail meanwhile. Show
+			 * that one, so the bitmap shown is always the one in the cache
+			 */
+			cached = mThumbnailCache.acquire(mImgID, mBucket);
+			if (cached != null)
+				bitmap = cached;
+			else
+				mThumbnailCache.put(mImgID, mBucket, bitmap);
 			/* Once complete, see if ImageView is still around and set bitmap. */
 			if (imageViewReference != null && bitmap != null) {
 
@@ -429,9 +633,12 @@ public class AsyncImageAdapter extends BaseAdapter {
 
 					transitionDrawable = new TransitionDrawable(layers);
 					imageView.setImageDrawable(transitionDrawable);
+					setDisplayedBitmap(imageView, bitmap);
 					transitionDrawable.startTransition(transDuration);
 				}
 			}
+			/* the cell holds it now, if it is still around */
+			BitmapPool.getInstance().release(cached);
 			/*
 			 * to fill the cache for other requests. this is somewhat imprecise,
 			 * so we allow a range of values to request the buffer ahead. the
@@ -453,14 +660,14 @@ public class AsyncImageAdapter extends BaseAdapter {
 	class BitmapBufferTask extends BitmapWorkerTask {
 
 		public BitmapBufferTask() {
-			super(null, -1);
+			super(null, null, -1);
 		}
 
 		protected Bitmap doInBackground(String... IDsToBuffer) {
 			Bitmap bmp;
 			for (String id : IDsToBuffer) {
 				bmp = super.doInBackground(new String[] { id });
-				addBitmapToMemoryCache(id, bmp);
+				mThumbnailCache.put(id, mBucket, bmp);
 			}
 			return null;
 		}
@@ -508,8 +715,9 @@ public class AsyncImageAdapter extends BaseAdapter {
 			intent = new Intent(mContext, FullScreenImageActivity.class);
 			intent.putExtra(FullScreenImageActivity.BITMAP_URI_FORMAT, 
 					MMS_PART_URI + "/%s");
-			intent.putStringArrayListExtra(
-					FullScreenImageActivity.BITMAP_IMAGE_ID_LIST, mImgIDs);
+			intent.putExtra(
+					FullScreenImageActivity.BITMAP_SESSION_HANDLE,
+					mImgIDs.getHandle());
 			intent.putExtra(
 					FullScreenImageActivity.BITMAP_IDX_TO_SHOW, pos);
 			mContext.startActivity(intent);
@@ -0,0 +1,250 @@
+package com.iodice.mmsexport;
+
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * A long running job, such as a conversation scan or an export, that is not
+ * tied to the activity or fragment that started it. Jobs are held in a process
+ * wide store by tag, so a fragment that is recreated after a rotation can find
+ * the job it started, reattach to it, and be told its latest progress and its
+ * result, instead of starting the work over.
+ * 
+ * A job is removed from the store once its result has been delivered to a
+ * listener, or once it finishes after being cancelled
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ * @param <Result>
+ *            The type of the job's result
+ */
+public abstract class BackgroundJob<Result> implements ProgressUpdateCallback {
+	/**
+	 * Notified on the main thread as a job makes progress and finishes
+	 */
+	public interface Listener<Result> {
+		/**
+		 * @param complete
+		 *            The number of work items done so far
+		 * @param total
+		 *            The number of work items in all
+		 */
+		void onJobProgress(int complete, int total);
+
+		/**
+		 * @param result
+		 *            The job's result, which may be null if it failed
+		 */
+		void onJobFinished(Result result);
+	}
+
+	private static final HashMap<String, BackgroundJob<?>> sJobs = new HashMap<String, BackgroundJob<?>>();
+	private static final Handler sMainHandler = new Handler(
+			Looper.getMainLooper());
+
+	private String mTag = null;
+	private volatile boolean mCancelled = false;
+
+	/* only touched on the main thread */
+	private Listener<Result> mListener = null;
+	private int mComplete = 0;
+	private int mTotal = 0;
+	private boolean mFinished = false;
+	private Result mResult = null;
+
+	/**
+	 * Looks up a running job, or a finished one whose result has not been
+	 * delivered yet
+	 * 
+	 * @return The job, or null if there is none with this tag
+	 */
+	@SuppressWarnings("unchecked")
+	public static <Result> BackgroundJob<Result> find(String tag) {
+		synchronized (sJobs) {
+			return (BackgroundJob<Result>) sJobs.get(tag);
+		}
+	}
+
+	/**
+	 * Adds the job to the store and runs it. Must be called from the main
+	 * thread
+	 * 
+	 * @param tag
+	 *            Identifies the job in the store. A job already stored under
+	 *            this tag is cancelled
+	 * @param executor
+	 *            Runs the job's {@link BackgroundJob#run()}
+	 */
+	public void start(String tag, Executor executor) {
+		BackgroundJob<?> previous;
+
+		mTag = tag;
+		synchronized (sJobs) {
+			previous = sJobs.put(tag, this);
+		}
+		if (previous != null)
+			previous.cancel();
+
+		executor.execute(new Runnable() {
+			public void run() {
+				Result result = null;
+
+				/*
+				 * the job must always finish, or it would stay in the store
+				 * and block any job started under the same tag. A failure
+				 * must not reach the executor either, which would kill the
+				 * process
+				 */
+				try {
+					result = BackgroundJob.this.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					result = null;
+				}
+
+				final Result finalResult = result;
+				sMainHandler.post(new Runnable() {
+					public void run() {
+						finish(finalResult);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Does the job's work on a background thread. It should report its
+	 * progress through
+	 * {@link BackgroundJob#respondToProgressUpdate(int, int)}, and stop early
+	 * once that returns false. If it throws a {@link RuntimeException}, the
+	 * exception is reported and the job finishes with a null result
+	 * 
+	 * @return The result, or null if the job failed or was cancelled
+	 */
+	protected abstract Result run();
+
+	/**
+	 * Called on the main thread when a job finishes, unless it was cancelled.
+	 * A job that can hand its result off some other way, such as in a
+	 * notification, may do so here when no listener is attached
+	 * 
+	 * @param result
+	 *            Whatever {@link BackgroundJob#run()} returned
+	 * @return true if the result has been handed off. The job is then removed
+	 *         from the store, and the result is never delivered to a listener
+	 */
+	protected boolean onFinished(Result result) {
+		return false;
+	}
+
+	/**
+	 * Called on the main thread, in place of delivering the result, when a job
+	 * finishes after being cancelled. Jobs that produce files or other
+	 * resources should clean them up here
+	 * 
+	 * @param result
+	 *            Whatever {@link BackgroundJob#run()} returned
+	 */
+	protected void onCancelled(Result result) {
+	}
+
+	/**
+	 * Asks the job to stop. Its result will not be delivered
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * Records the job's progress, and passes it on to the listener. May be
+	 * called from any thread
+	 * 
+	 * @return false if the job has been cancelled and should stop
+	 */
+	@Override
+	public boolean respondToProgressUpdate(final int complete, final int total) {
+		sMainHandler.post(new Runnable() {
+			public void run() {
+				mComplete = complete;
+				mTotal = total;
+				if (mListener != null && mFinished == false)
+					mListener.onJobProgress(complete, total);
+			}
+		});
+		return mCancelled == false;
+	}
+
+	/**
+	 * @return true if a listener is attached. Must be called from the main
+	 *         thread
+	 */
+	protected boolean isAttached() {
+		return mListener != null;
+	}
+
+	/**
+	 * Attaches a listener, replacing any other. The listener is told the
+	 * latest progress right away, and the result too if the job has already
+	 * finished. Must be called from the main thread
+	 */
+	public void attach(Listener<Result> listener) {
+		mListener = listener;
+		if (mFinished) {
+			deliver();
+			return;
+		}
+		if (mTotal > 0)
+			listener.onJobProgress(mComplete, mTotal);
+	}
+
+	/**
+	 * Detaches a listener, if it is the one attached. The job keeps running,
+	 * and holds on to its result until another listener attaches. Must be
+	 * called from the main thread
+	 */
+	public void detach(Listener<Result> listener) {
+		if (mListener == listener)
+			mListener = null;
+	}
+
+	private void finish(Result result) {
+		mFinished = true;
+		mResult = result;
+		if (mCancelled) {
+			remove();
+			onCancelled(result);
+			return;
+		}
+		if (onFinished(result)) {
+			mResult = null;
+			remove();
+			return;
+		}
+		if (mListener != null)
+			deliver();
+	}
+
+	private void deliver() {
+		Listener<Result> listener = mListener;
+		Result result = mResult;
+
+		mListener = null;
+		mResult = null;
+		remove();
+		listener.onJobFinished(result);
+	}
+
+	private void remove() {
+		synchronized (sJobs) {
+			if (sJobs.get(mTag) == this)
+				sJobs.remove(mTag);
+		}
+	}
+}
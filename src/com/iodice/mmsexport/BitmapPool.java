@@ -0,0 +1,302 @@
+package com.iodice.mmsexport;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+
+/**
+ * A pool of thumbnail bitmaps that are no longer used, so their memory can be
+ * decoded into again through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of
+ * allocating a new bitmap for every thumbnail.
+ * 
+ * A bitmap enters the pool once it has been evicted from the memory cache and
+ * no view is displaying it any more. Views report what they display with
+ * {@link BitmapPool#retain(Bitmap)} and {@link BitmapPool#release(Bitmap)}.
+ * Those records hold bitmaps weakly, so a bitmap whose view goes away without
+ * releasing it is simply collected instead of pooled. Only mutable bitmaps can
+ * be pooled, so every thumbnail is decoded, cropped or scaled into one.
+ * 
+ * Pooled bitmaps are bucketed by their allocation size. Reusing a bitmap for
+ * an image of a different size needs KitKat, so on older devices the pool is
+ * always empty
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class BitmapPool {
+	/**
+	 * {@link BitmapPool#MAX_WASTE_FACTOR} A pooled bitmap is not handed out for
+	 * an image that would use less than 1 / MAX_WASTE_FACTOR of its memory
+	 */
+	private static final int MAX_WASTE_FACTOR = 4;
+
+	private static BitmapPool sInstance = null;
+
+	private final long mMaxBytes;
+	private long mBytes = 0;
+
+	/* pooled bitmaps by allocation size */
+	private final TreeMap<Integer, LinkedList<Bitmap>> mPool = new TreeMap<Integer, LinkedList<Bitmap>>();
+
+	/*
+	 * the number of views displaying each bitmap. Bitmap does not override
+	 * equals, so these are keyed by identity
+	 */
+	private final Map<Bitmap, Integer> mRefCounts = new WeakHashMap<Bitmap, Integer>();
+
+	/* bitmaps that were discarded while a view was still displaying them */
+	private final Set<Bitmap> mDiscarded = Collections
+			.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+
+	private int mHits = 0;
+	private int mMisses = 0;
+	private int mRejections = 0;
+
+	private BitmapPool(long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the process wide pool, which may hold up to a sixteenth of the
+	 * heap
+	 */
+	public static synchronized BitmapPool getInstance() {
+		if (sInstance == null)
+			sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+		return sInstance;
+	}
+
+	/**
+	 * @return true if bitmaps can be reused on this device
+	 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+	}
+
+	/**
+	 * Takes a pooled bitmap that can hold an image of the given size. The
+	 * bitmap is removed from the pool
+	 * 
+	 * @param exactSize
+	 *            If true, only a bitmap of exactly width by height is
+	 *            returned. Decoders that can not resize the bitmap they are
+	 *            given, such as {@link android.graphics.BitmapRegionDecoder},
+	 *            need this
+	 * @return A mutable bitmap, or null if there is none to reuse
+	 */
+	public synchronized Bitmap get(int width, int height,
+			Bitmap.Config config, boolean exactSize) {
+		int needed = width * height * getBytesPerPixel(config);
+		Map.Entry<Integer, LinkedList<Bitmap>> entry;
+		Bitmap bitmap;
+
+		if (needed > 0 && isSupported()) {
+			entry = mPool.ceilingEntry(needed);
+			while (entry != null && entry.getKey() <= needed * MAX_WASTE_FACTOR) {
+				for (int i = 0; i < entry.getValue().size(); i++) {
+					bitmap = entry.getValue().get(i);
+					if (bitmap.getConfig() == config
+							&& (exactSize == false || (bitmap.getWidth() == width && bitmap
+									.getHeight() == height))) {
+						entry.getValue().remove(i);
+						if (entry.getValue().isEmpty())
+							mPool.remove(entry.getKey());
+						mBytes -= entry.getKey();
+						mHits++;
+						return bitmap;
+					}
+				}
+				entry = mPool.higherEntry(entry.getKey());
+			}
+		}
+		mMisses++;
+		return null;
+	}
+
+	/**
+	 * Sets up a decode to produce a mutable bitmap, so it can be pooled once
+	 * it is no longer used, and to decode into a pooled bitmap if there is one
+	 * that fits. If the decode then throws an IllegalArgumentException, pass
+	 * the options to {@link BitmapPool#reject(BitmapFactory.Options)} and
+	 * decode again
+	 * 
+	 * @param opts
+	 *            The decode's options, with inSampleSize and
+	 *            inPreferredConfig already set
+	 * @param width
+	 *            The width of the area being decoded, before sampling
+	 * @param height
+	 *            The height of the area being decoded, before sampling
+	 * @param exactSize
+	 *            See {@link BitmapPool#get(int, int, Bitmap.Config, boolean)}
+	 */
+	public void prepareDecode(BitmapFactory.Options opts, int width,
+			int height, boolean exactSize) {
+		int sample = Math.max(1, opts.inSampleSize);
+
+		opts.inMutable = true;
+		opts.inBitmap = get((width + sample - 1) / sample, (height + sample - 1)
+				/ sample, opts.inPreferredConfig, exactSize);
+	}
+
+	/**
+	 * Takes back the pooled bitmap a decode could not use, and clears it from
+	 * the options so the decode can be retried without it
+	 */
+	public synchronized void reject(BitmapFactory.Options opts) {
+		if (opts.inBitmap == null)
+			return;
+		mRejections++;
+		put(opts.inBitmap);
+		opts.inBitmap = null;
+	}
+
+	/**
+	 * Draws part of a bitmap, scaled to width by height, into a mutable bitmap
+	 * that can be pooled later. A pooled bitmap of that size is reused if
+	 * there is one
+	 * 
+	 * @param region
+	 *            The part of source to draw
+	 */
+	public Bitmap copyRegion(Bitmap source, Rect region, int width, int height) {
+		Bitmap.Config config = source.getConfig() != null ? source.getConfig()
+				: Bitmap.Config.ARGB_8888;
+		Bitmap bitmap = get(width, height, config, true);
+
+		if (bitmap == null)
+			bitmap = Bitmap.createBitmap(width, height, config);
+		else
+			bitmap.eraseColor(Color.TRANSPARENT);
+		new Canvas(bitmap).drawBitmap(source, region, new Rect(0, 0, width,
+				height), new Paint(Paint.FILTER_BITMAP_FLAG));
+		return bitmap;
+	}
+
+	/**
+	 * Records that a view has started displaying a bitmap
+	 */
+	public synchronized void retain(Bitmap bitmap) {
+		Integer count;
+		if (bitmap == null)
+			return;
+		count = mRefCounts.get(bitmap);
+		mRefCounts.put(bitmap, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Records that a view has stopped displaying a bitmap. If it was already
+	 * evicted from the cache, it is pooled
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		Integer count;
+		if (bitmap == null)
+			return;
+		count = mRefCounts.get(bitmap);
+		if (count == null)
+			return;
+		if (count > 1) {
+			mRefCounts.put(bitmap, count - 1);
+			return;
+		}
+		mRefCounts.remove(bitmap);
+		if (mDiscarded.remove(bitmap))
+			put(bitmap);
+	}
+
+	/**
+	 * Called when the owner of a bitmap, such as the memory cache, lets go of
+	 * it. It is pooled right away, unless a view is still displaying it
+	 */
+	public synchronized void discard(Bitmap bitmap) {
+		if (bitmap == null)
+			return;
+		if (mRefCounts.containsKey(bitmap))
+			mDiscarded.add(bitmap);
+		else
+			put(bitmap);
+	}
+
+	/**
+	 * @return The number of times {@link BitmapPool#get} found a bitmap
+	 */
+	public synchronized int getHits() {
+		return mHits;
+	}
+
+	/**
+	 * @return The number of times {@link BitmapPool#get} found nothing
+	 */
+	public synchronized int getMisses() {
+		return mMisses;
+	}
+
+	/**
+	 * @return The number of pooled bitmaps a decode could not use. See
+	 *         {@link BitmapPool#reject(BitmapFactory.Options)}
+	 */
+	public synchronized int getRejections() {
+		return mRejections;
+	}
+
+	/**
+	 * @return The number of times a pooled bitmap was actually written into
+	 *         instead of allocating a new one
+	 */
+	public synchronized int getReuses() {
+		return mHits - mRejections;
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private void put(Bitmap bitmap) {
+		int size;
+		Map.Entry<Integer, LinkedList<Bitmap>> largest;
+		LinkedList<Bitmap> bucket;
+
+		if (isSupported() == false || bitmap.isMutable() == false
+				|| bitmap.isRecycled())
+			return;
+		size = bitmap.getAllocationByteCount();
+		if (size > mMaxBytes)
+			return;
+
+		bucket = mPool.get(size);
+		if (bucket == null) {
+			bucket = new LinkedList<Bitmap>();
+			mPool.put(size, bucket);
+		}
+		bucket.addLast(bitmap);
+		mBytes += size;
+
+		/* the largest bitmaps are the least likely to fit a thumbnail */
+		while (mBytes > mMaxBytes) {
+			largest = mPool.lastEntry();
+			largest.getValue().removeFirst();
+			if (largest.getValue().isEmpty())
+				mPool.remove(largest.getKey());
+			mBytes -= largest.getKey();
+		}
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.ALPHA_8)
+			return 1;
+		if (config == Bitmap.Config.RGB_565
+				|| config == Bitmap.Config.ARGB_4444)
+			return 2;
+		return 4;
+	}
+}
@@ -0,0 +1,386 @@
+package com.iodice.mmsexport;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * A size bounded cache of encoded thumbnails on disk, which survives the
+ * process. It sits behind the in-memory cache, so a thread that has been
+ * opened before does not need its thumbnails decoded again from the full
+ * size mms parts.
+ * 
+ * Each thumbnail is a small JPEG file in the app's cache directory. A journal
+ * records every write, read and removal, and is replayed when the cache is
+ * opened to restore both the set of entries and their LRU order. When the
+ * files take more than {@link DiskThumbnailCache#MAX_SIZE_BYTES}, the least
+ * recently used ones are deleted
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class DiskThumbnailCache {
+
+	/**
+	 * {@link DiskThumbnailCache#DIRECTORY} The directory, under the app's cache
+	 * directory, that holds the cache
+	 */
+	private static final String DIRECTORY = "thumbnails";
+
+	/**
+	 * {@link DiskThumbnailCache#MAX_SIZE_BYTES} The most space the cached
+	 * files may take
+	 */
+	private static final long MAX_SIZE_BYTES = 32 * 1024 * 1024;
+
+	/**
+	 * {@link DiskThumbnailCache#JPEG_QUALITY} Thumbnails are small and only
+	 * shown in the grid, so a moderate quality is plenty
+	 */
+	private static final int JPEG_QUALITY = 85;
+
+	/* journal file and its records */
+	private static final String JOURNAL_FILE = "journal";
+	private static final String JOURNAL_TMP_FILE = "journal.tmp";
+	private static final String JOURNAL_HEADER = "thumbnails 1";
+	private static final String PUT = "PUT";
+	private static final String READ = "READ";
+	private static final String REMOVE = "REMOVE";
+
+	/**
+	 * {@link DiskThumbnailCache#MAX_REDUNDANT_RECORDS} Once this many records
+	 * have been appended since the journal was last compacted, it is
+	 * rewritten from scratch
+	 */
+	private static final int MAX_REDUNDANT_RECORDS = 2000;
+
+	private static DiskThumbnailCache sInstance = null;
+
+	private final File mDirectory;
+
+	/* file sizes by key, in LRU order. guarded by this */
+	private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(
+			0, 0.75f, true);
+	private long mSize = 0;
+	private int mRedundantRecords = 0;
+	private Writer mJournal = null;
+
+	private DiskThumbnailCache(File directory) {
+		mDirectory = directory;
+	}
+
+	/**
+	 * Returns the process wide cache, opening it the first time it is needed.
+	 * Opening reads the journal, so this should not be called on the main
+	 * thread
+	 * 
+	 * @param context
+	 *            Any context
+	 */
+	public static synchronized DiskThumbnailCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new DiskThumbnailCache(new File(context
+					.getApplicationContext().getCacheDir(), DIRECTORY));
+			sInstance.open();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Returns a cached thumbnail
+	 * 
+	 * @param key
+	 *            Identifies the thumbnail, including its size
+	 * @param config
+	 *            The pixel format to decode the thumbnail in
+	 * @param maxSize
+	 *            The largest the thumbnail's side can be. A pooled bitmap
+	 *            this large is decoded into, if there is one
+	 * @return The thumbnail, which is mutable, or null if it is not cached
+	 */
+	public Bitmap get(String key, Bitmap.Config config, int maxSize) {
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		File file;
+		Bitmap bitmap;
+
+		synchronized (this) {
+			if (mEntries.get(key) == null)
+				return null;
+			file = getFile(key);
+			appendRecord(READ, key, -1);
+		}
+
+		/* decode outside of the lock. A concurrent eviction reads as a miss */
+		opts.inPreferredConfig = config;
+		BitmapPool.getInstance().prepareDecode(opts, maxSize, maxSize, false);
+		try {
+			bitmap = BitmapFactory.decodeFile(file.getPath(), opts);
+		} catch (IllegalArgumentException e) {
+			/* the pooled bitmap did not fit after all */
+			BitmapPool.getInstance().reject(opts);
+			bitmap = BitmapFactory.decodeFile(file.getPath(), opts);
+		}
+		if (bitmap == null)
+			remove(key);
+		return bitmap;
+	}
+
+	/**
+	 * Encodes and stores a thumbnail, replacing any previous one for key
+	 * 
+	 * @param key
+	 *            Identifies the thumbnail, including its size
+	 * @param bitmap
+	 *            The thumbnail
+	 */
+	public void put(String key, Bitmap bitmap) {
+		File tmp = null;
+		OutputStream os = null;
+		boolean written = false;
+
+		if (bitmap == null || mJournal == null)
+			return;
+
+		/*
+		 * encode outside of the lock, then publish with a rename. Each write
+		 * gets its own temporary file, so two puts of the same key can not
+		 * interleave their writes
+		 */
+		try {
+			tmp = File.createTempFile("put", ".tmp", mDirectory);
+			os = new FileOutputStream(tmp);
+			written = bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY,
+					os);
+		} catch (IOException e) {
+		} finally {
+			if (os != null) {
+				try {
+					os.close();
+				} catch (IOException e) {
+					written = false;
+				}
+			}
+		}
+
+		synchronized (this) {
+			if (written == false || tmp.renameTo(getFile(key)) == false) {
+				if (tmp != null)
+					tmp.delete();
+				return;
+			}
+			setEntry(key, getFile(key).length());
+			appendRecord(PUT, key, mEntries.get(key));
+			trimToSize();
+		}
+	}
+
+	/**
+	 * Removes a thumbnail from the cache
+	 */
+	public synchronized void remove(String key) {
+		if (removeEntry(key))
+			appendRecord(REMOVE, key, -1);
+	}
+
+	/**
+	 * Reads the journal, drops files the journal does not know about, and
+	 * opens the journal for appending. If anything goes wrong the cache is
+	 * cleared and started over, since it can always be refilled
+	 */
+	private synchronized void open() {
+		File journal = new File(mDirectory, JOURNAL_FILE);
+
+		/* without a directory, the cache is not used */
+		if (mDirectory.isDirectory() == false && mDirectory.mkdirs() == false)
+			return;
+		try {
+			if (journal.exists())
+				readJournal(journal);
+		} catch (IOException e) {
+			e.printStackTrace();
+			mEntries.clear();
+			mSize = 0;
+		}
+		deleteUnknownFiles();
+		rebuildJournal();
+	}
+
+	private void readJournal(File journal) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(journal));
+		String line;
+		String[] parts;
+
+		try {
+			if (JOURNAL_HEADER.equals(reader.readLine()) == false)
+				throw new IOException("Unexpected journal header");
+			while ((line = reader.readLine()) != null) {
+				parts = line.split(" ");
+				if (parts.length == 3 && PUT.equals(parts[0]))
+					setEntry(parts[1], Long.parseLong(parts[2]));
+				else if (parts.length == 2 && READ.equals(parts[0]))
+					mEntries.get(parts[1]);
+				else if (parts.length == 2 && REMOVE.equals(parts[0]))
+					forgetEntry(parts[1]);
+				/* anything else is a record cut short by a crash. ignore it */
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Corrupt journal record");
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Deletes files left behind by entries that never made it into the journal,
+	 * and forgets entries whose files are gone
+	 */
+	private void deleteUnknownFiles() {
+		File[] files = mDirectory.listFiles();
+		Iterator<Map.Entry<String, Long>> it;
+		String name;
+
+		if (files != null) {
+			for (File file : files) {
+				name = file.getName();
+				if (JOURNAL_FILE.equals(name) || JOURNAL_TMP_FILE.equals(name))
+					continue;
+				if (name.endsWith(".tmp")
+						|| mEntries.containsKey(getKey(name)) == false)
+					file.delete();
+			}
+		}
+
+		it = mEntries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if (getFile(entry.getKey()).exists() == false) {
+				mSize -= entry.getValue();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Writes a compact journal holding one record per entry, in LRU order, and
+	 * reopens it for appending
+	 */
+	private void rebuildJournal() {
+		File journal = new File(mDirectory, JOURNAL_FILE);
+		File tmp = new File(mDirectory, JOURNAL_TMP_FILE);
+		Writer writer = null;
+
+		try {
+			if (mJournal != null)
+				mJournal.close();
+			mJournal = null;
+
+			writer = new BufferedWriter(new FileWriter(tmp));
+			writer.write(JOURNAL_HEADER + "\n");
+			for (Map.Entry<String, Long> entry : mEntries.entrySet())
+				writer.write(PUT + " " + entry.getKey() + " "
+						+ entry.getValue() + "\n");
+			writer.close();
+			writer = null;
+			if (tmp.renameTo(journal) == false)
+				throw new IOException("Could not replace the journal");
+
+			mJournal = new BufferedWriter(new FileWriter(journal, true));
+			mRedundantRecords = 0;
+		} catch (IOException e) {
+			/* without a journal, the cache is not used */
+			e.printStackTrace();
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e2) {
+				}
+			}
+		}
+	}
+
+	private void appendRecord(String type, String key, long size) {
+		if (mJournal == null)
+			return;
+		try {
+			mJournal.write(type + " " + key + (size < 0 ? "" : " " + size)
+					+ "\n");
+			mJournal.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		mRedundantRecords++;
+		if (mRedundantRecords > MAX_REDUNDANT_RECORDS)
+			rebuildJournal();
+	}
+
+	private void setEntry(String key, long size) {
+		Long previous = mEntries.put(key, size);
+		if (previous != null)
+			mSize -= previous;
+		mSize += size;
+	}
+
+	private boolean removeEntry(String key) {
+		if (forgetEntry(key) == false)
+			return false;
+		getFile(key).delete();
+		return true;
+	}
+
+	/**
+	 * Drops an entry without touching its file. Replaying the journal only uses
+	 * this, since a removed key may have been written again by a later record,
+	 * and files no entry claims are deleted afterwards anyway
+	 */
+	private boolean forgetEntry(String key) {
+		Long previous = mEntries.remove(key);
+		if (previous == null)
+			return false;
+		mSize -= previous;
+		return true;
+	}
+
+	/**
+	 * Deletes the least recently used thumbnails until the cache fits
+	 */
+	private void trimToSize() {
+		String eldest;
+
+		while (mSize > MAX_SIZE_BYTES && mEntries.isEmpty() == false) {
+			eldest = mEntries.keySet().iterator().next();
+			removeEntry(eldest);
+			appendRecord(REMOVE, eldest, -1);
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(mDirectory, getFileName(key));
+	}
+
+	/**
+	 * Keys are made of part IDs and sizes, such as "123@240". '@' is replaced
+	 * to keep file names plain
+	 */
+	private static String getFileName(String key) {
+		return key.replace('@', '_') + ".jpg";
+	}
+
+	private static String getKey(String fileName) {
+		if (fileName.endsWith(".jpg") == false)
+			return null;
+		return fileName.substring(0, fileName.length() - 4).replace('_', '@');
+	}
+}
@@ -0,0 +1,147 @@
+package com.iodice.mmsexport;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Extracts the small preview image that most cameras embed in a JPEG's EXIF
+ * data. Decoding the preview is far cheaper than decoding the image itself,
+ * even heavily sampled, so it can serve a grid cell when it is large enough.
+ * 
+ * Only the start of the file is read: the APP1 segment that holds the EXIF
+ * data comes before the image data, and is at most 64 KB
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ExifThumbnail {
+	/* JPEG markers */
+	private static final int SOI = 0xFFD8;
+	private static final int APP1 = 0xFFE1;
+	private static final int SOS = 0xFFDA;
+	private static final int EOI = 0xFFD9;
+
+	/* TIFF tags that locate the preview in IFD1 */
+	private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+	private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+	private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+	/**
+	 * {@link ExifThumbnail#MAX_SEGMENTS} The number of segments to look
+	 * through for EXIF data before giving up
+	 */
+	private static final int MAX_SEGMENTS = 16;
+
+	private ExifThumbnail() {
+	}
+
+	/**
+	 * Reads the embedded preview from a JPEG
+	 * 
+	 * @param in
+	 *            A stream positioned at the start of the JPEG. It is read only
+	 *            as far as the EXIF data, and is not closed
+	 * @return The preview, itself JPEG encoded, or null if there is none
+	 * @throws IOException
+	 *             If the stream could not be read
+	 */
+	public static byte[] read(InputStream in) throws IOException {
+		DataInputStream is = new DataInputStream(in);
+		byte[] segment;
+		byte[] thumbnail;
+		int marker;
+		int length;
+
+		if (is.readUnsignedShort() != SOI)
+			return null;
+		for (int i = 0; i < MAX_SEGMENTS; i++) {
+			marker = is.readUnsignedShort();
+			if ((marker & 0xFF00) != 0xFF00 || marker == SOS || marker == EOI)
+				return null;
+			length = is.readUnsignedShort() - 2;
+			if (length < 0)
+				return null;
+
+			if (marker == APP1) {
+				segment = new byte[length];
+				is.readFully(segment);
+				/* APP1 may hold XMP instead, so keep looking */
+				thumbnail = parseExif(segment);
+				if (thumbnail != null)
+					return thumbnail;
+			} else if (is.skipBytes(length) != length)
+				return null;
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the preview in an APP1 segment, by way of the TIFF structure
+	 * inside it: the header points to IFD0, IFD0 links to IFD1, and IFD1
+	 * holds the preview's offset and length
+	 */
+	private static byte[] parseExif(byte[] segment) {
+		final int tiff = EXIF_HEADER.length;
+		boolean littleEndian;
+		int ifd0;
+		int ifd1;
+		int entry;
+		int offset = -1;
+		int length = -1;
+
+		if (segment.length < tiff + 8
+				|| Arrays.equals(Arrays.copyOf(segment, tiff), EXIF_HEADER) == false)
+			return null;
+		if (segment[tiff] == 'I' && segment[tiff + 1] == 'I')
+			littleEndian = true;
+		else if (segment[tiff] == 'M' && segment[tiff + 1] == 'M')
+			littleEndian = false;
+		else
+			return null;
+
+		try {
+			ifd0 = tiff + readInt(segment, tiff + 4, littleEndian);
+			ifd1 = readInt(segment, ifd0 + 2 + 12
+					* readShort(segment, ifd0, littleEndian), littleEndian);
+			if (ifd1 <= 0)
+				return null;
+			ifd1 += tiff;
+
+			for (int i = readShort(segment, ifd1, littleEndian) - 1; i >= 0; i--) {
+				entry = ifd1 + 2 + 12 * i;
+				switch (readShort(segment, entry, littleEndian)) {
+					case TAG_THUMBNAIL_OFFSET:
+						offset = readInt(segment, entry + 8, littleEndian);
+						break;
+					case TAG_THUMBNAIL_LENGTH:
+						length = readInt(segment, entry + 8, littleEndian);
+						break;
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			/* a corrupt or truncated directory */
+			return null;
+		}
+
+		if (offset <= 0 || length <= 0
+				|| offset > segment.length - tiff - length)
+			return null;
+		return Arrays.copyOfRange(segment, tiff + offset, tiff + offset
+				+ length);
+	}
+
+	private static int readShort(byte[] b, int pos, boolean littleEndian) {
+		if (littleEndian)
+			return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8;
+		return (b[pos] & 0xFF) << 8 | (b[pos + 1] & 0xFF);
+	}
+
+	private static int readInt(byte[] b, int pos, boolean littleEndian) {
+		if (littleEndian)
+			return readShort(b, pos, true) | readShort(b, pos + 2, true) << 16;
+		return readShort(b, pos, false) << 16 | readShort(b, pos + 2, false);
+	}
+}
@@ -0,0 +1,150 @@
+package com.iodice.mmsexport;
+
+import java.util.HashSet;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+
+/**
+ * A record of every image part that has been exported, with a hash of its
+ * contents and the archive it went into, so that a later export of the same
+ * conversation can select only the images that are new since the last one.
+ * 
+ * Checking whether a part has been exported only needs its ID, and never opens
+ * the part itself. The hash is informational, and is not used to decide what
+ * is new. It is the CRC-32 of the part's own bytes, taken from the zip entry
+ * when the part was copied into the archive untranscoded, and
+ * {@link ExportManifest#NO_HASH} when it was transcoded, since the entry then
+ * holds different bytes. Should not be used on the main thread
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ExportManifest extends SQLiteOpenHelper {
+	private static final String DATABASE_NAME = "export_manifest.db";
+	private static final int DATABASE_VERSION = 1;
+
+	/* exported part table */
+	private static final String TABLE_EXPORTED = "exported";
+	private static final String COL_PART_ID = "part_id";
+	private static final String COL_HASH = "hash";
+	private static final String COL_ARCHIVE = "archive";
+	private static final String COL_DATE = "date";
+
+	/**
+	 * {@link ExportManifest#NO_HASH} Recorded in place of a hash for a part
+	 * whose bytes were not hashed, i.e., one that was transcoded on export
+	 */
+	public static final long NO_HASH = -1;
+
+	private static ExportManifest sInstance = null;
+
+	private ExportManifest(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	/**
+	 * Returns the process wide manifest
+	 * 
+	 * @param context
+	 *            Any context. Only its application context is retained
+	 */
+	public static synchronized ExportManifest getInstance(Context context) {
+		if (sInstance == null)
+			sInstance = new ExportManifest(context.getApplicationContext());
+		return sInstance;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_EXPORTED + " (" + COL_PART_ID
+				+ " INTEGER PRIMARY KEY, " + COL_HASH + " INTEGER NOT NULL, "
+				+ COL_ARCHIVE + " TEXT, " + COL_DATE + " INTEGER)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_EXPORTED);
+		onCreate(db);
+	}
+
+	/**
+	 * Records the parts that went into a finished archive. A part that was
+	 * exported before is updated to point at the new archive
+	 * 
+	 * @param uriStrings
+	 *            String URIs of the exported parts, in entry order. URIs that
+	 *            do not end in a part ID are skipped
+	 * @param hashes
+	 *            The CRC-32 of each part's bytes, in the same order, or
+	 *            {@link ExportManifest#NO_HASH} for a part that was not hashed
+	 * @param archive
+	 *            The file name of the archive the parts were written to, or
+	 *            the path of the stream they were served through. Each export
+	 *            writes its own, uniquely named, archive or stream
+	 */
+	public void record(List<String> uriStrings, long[] hashes, String archive) {
+		SQLiteDatabase db = getWritableDatabase();
+		ContentValues values = new ContentValues();
+		long date = System.currentTimeMillis();
+		long partID;
+
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < uriStrings.size(); i++) {
+				partID = getPartID(uriStrings.get(i));
+				if (partID < 0)
+					continue;
+				values.clear();
+				values.put(COL_PART_ID, partID);
+				values.put(COL_HASH, hashes[i]);
+				values.put(COL_ARCHIVE, archive);
+				values.put(COL_DATE, date);
+				db.replace(TABLE_EXPORTED, null, values);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Finds the images in a session that have never been exported. Every
+	 * exported part ID is read in a single query, after which each image is
+	 * checked in constant time
+	 * 
+	 * @return One flag per position in the session, as it was when this was
+	 *         called. A flag is true if that image has not been exported
+	 */
+	public boolean[] findNew(ImageSession session) {
+		HashSet<Long> exported = new HashSet<Long>();
+		int size = session.size();
+		boolean[] isNew = new boolean[size];
+		Cursor cursor = getReadableDatabase().query(TABLE_EXPORTED,
+				new String[] { COL_PART_ID }, null, null, null, null, null);
+
+		while (cursor.moveToNext())
+			exported.add(cursor.getLong(0));
+		cursor.close();
+
+		for (int i = 0; i < size; i++)
+			isNew[i] = exported.contains(session.getId(i)) == false;
+		return isNew;
+	}
+
+	/**
+	 * @return The part ID at the end of a part URI, or -1 if there is none
+	 */
+	private static long getPartID(String uriString) {
+		try {
+			return Long.parseLong(Uri.parse(uriString).getLastPathSegment());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
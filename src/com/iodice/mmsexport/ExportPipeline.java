@@ -0,0 +1,494 @@
+package com.iodice.mmsexport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/**
+ * Produces the entries of an image export in parallel and writes them to a
+ * single {@link ZipOutputStream}, or {@link ResumableZipWriter}, in their
+ * original order. Reader workers, run on {@link TaskScheduler#EXPORT} and
+ * sized to the number of cores, fetch each image, optionally transcode it,
+ * and hold it as an in-memory payload. The calling thread is the only writer:
+ * it takes payloads strictly in order and appends them to the zip.
+ * 
+ * Payloads waiting to be written are capped by a byte budget, so memory use
+ * stays flat regardless of how many images are selected. A worker that would
+ * exceed the budget blocks until the writer catches up, unless its payload is
+ * the very next one the writer needs, in which case it is always let through
+ * so the pipeline can not stall. A part too large for a worker's share of the
+ * budget is never held in memory: the writer streams it from the content
+ * provider into the zip when its turn comes
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ExportPipeline {
+	/**
+	 * {@link ExportPipeline#DEFAULT_MAX_BUFFERED_BYTES} The default cap on the
+	 * total size of payloads waiting to be written
+	 */
+	public static final long DEFAULT_MAX_BUFFERED_BYTES = 8 * 1024 * 1024;
+
+	/* the chunk size used when streaming a part into the zip */
+	private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+	private final List<String> mUriStrings;
+	private final Bitmap.CompressFormat mFormat;
+	private final boolean mStoreCompressed;
+	private final Context mContext;
+	private final int mWorkerCount;
+	private final long mMaxBufferedBytes;
+	/* the largest part a worker reads into memory, rather than streaming */
+	private final int mMaxPayloadBytes;
+
+	/* entry naming, resolved once from the requested format */
+	private final String mFileNameFormat;
+	private final String mFormatExtension;
+	private final String mFormatContentType;
+
+	/* guards every field below */
+	private final Object mLock = new Object();
+	private final Map<Integer, Payload> mReady = new HashMap<Integer, Payload>();
+	private int mNextToClaim = 0;
+	private int mNextToWrite = 0;
+	private long mBufferedBytes = 0;
+	private boolean mCancelled = false;
+	private IOException mError = null;
+
+	/**
+	 * A fully prepared zip entry, ready to be written. An entry that is too
+	 * large to prepare in memory has no data, only the URI to stream it from
+	 */
+	private static class Payload {
+		String name;
+		byte[] data;
+		String uri;
+		int method;
+		long crc;
+
+		/**
+		 * @return The number of bytes the payload holds in memory
+		 */
+		int getBufferedSize() {
+			return data == null ? 0 : data.length;
+		}
+	}
+
+	/**
+	 * Appends payloads to an archive, on the writer thread
+	 */
+	private interface EntryWriter {
+		void write(Payload payload) throws IOException;
+	}
+
+	/**
+	 * @param uriStrings
+	 *            String representations of URIs to the images
+	 * @param format
+	 *            The format to transcode to, or null to export the original
+	 *            bytes of each part
+	 * @param storeCompressed
+	 *            If true, already compressed payloads are written as
+	 *            {@link ZipEntry#STORED} entries
+	 * @param context
+	 *            The context to use when querying the content provider
+	 */
+	public ExportPipeline(List<String> uriStrings,
+			Bitmap.CompressFormat format, boolean storeCompressed,
+			Context context) {
+		this(uriStrings, format, storeCompressed, context, Runtime
+				.getRuntime().availableProcessors(),
+				DEFAULT_MAX_BUFFERED_BYTES);
+	}
+
+	/**
+	 * @param workerCount
+	 *            The number of reader workers to run
+	 * @param maxBufferedBytes
+	 *            The cap on the total size of payloads waiting to be written
+	 * @see ExportPipeline#ExportPipeline(List, Bitmap.CompressFormat, boolean,
+	 *      Context)
+	 */
+	public ExportPipeline(List<String> uriStrings,
+			Bitmap.CompressFormat format, boolean storeCompressed,
+			Context context, int workerCount, long maxBufferedBytes) {
+		String fileNameFormat = context
+				.getString(R.string.zip_image_individual_file_format);
+
+		mUriStrings = uriStrings;
+		mFormat = format;
+		mStoreCompressed = storeCompressed;
+		mContext = context;
+		mWorkerCount = Math.max(1, workerCount);
+		mMaxBufferedBytes = maxBufferedBytes;
+		mMaxPayloadBytes = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 1,
+				maxBufferedBytes / mWorkerCount));
+
+		if (format == null) {
+			mFormatExtension = null;
+			mFormatContentType = null;
+		} else {
+			switch (format) {
+			case JPEG:
+				mFormatContentType = "image/jpeg";
+				break;
+			case PNG:
+				mFormatContentType = "image/png";
+				break;
+			case WEBP:
+				mFormatContentType = "image/webp";
+				break;
+			default:
+				mFormatContentType = null;
+				break;
+			}
+			mFormatExtension = ImageUtils
+					.getExtensionForContentType(mFormatContentType);
+		}
+		mFileNameFormat = fileNameFormat;
+	}
+
+	/**
+	 * Runs the export, writing every entry to zos. Blocks until all entries
+	 * are written, the export is cancelled, or an error occurs. The stream is
+	 * not closed
+	 * 
+	 * @param zos
+	 *            The stream to write entries to
+	 * @param callback
+	 *            An optional parameter. If not null, it is invoked after each
+	 *            entry is written. If it returns false, the export stops
+	 * @throws IOException
+	 *             If reading an image or writing the archive fails
+	 */
+	public void writeTo(final ZipOutputStream zos,
+			ProgressUpdateCallback callback) throws IOException {
+		write(new EntryWriter() {
+			@Override
+			public void write(Payload payload) throws IOException {
+				ZipEntry entry = new ZipEntry(payload.name);
+				long size;
+
+				if (payload.method == ZipEntry.STORED) {
+					/*
+					 * a streamed part is read once to find its size and crc,
+					 * which a STORED entry must have in its header
+					 */
+					if (payload.data == null) {
+						size = measure(payload);
+					} else {
+						size = payload.data.length;
+					}
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(size);
+					entry.setCompressedSize(size);
+					entry.setCrc(payload.crc);
+				}
+				zos.putNextEntry(entry);
+				if (payload.data == null) {
+					copy(payload, zos);
+				} else {
+					zos.write(payload.data);
+				}
+				zos.closeEntry();
+			}
+		}, 0, callback);
+	}
+
+	/**
+	 * Runs the export, appending entries to writer after the ones it already
+	 * holds from an earlier attempt. Blocks until all entries are written, the
+	 * export is cancelled, or an error occurs. The writer is not finished or
+	 * closed
+	 * 
+	 * @param writer
+	 *            The archive to write entries to
+	 * @param callback
+	 *            An optional parameter. If not null, it is invoked after each
+	 *            entry is written, counting the entries that were already
+	 *            there. If it returns false, the export stops
+	 * @throws IOException
+	 *             If reading an image or writing the archive fails
+	 */
+	public void writeTo(final ResumableZipWriter writer,
+			ProgressUpdateCallback callback) throws IOException {
+		write(new EntryWriter() {
+			@Override
+			public void write(Payload payload) throws IOException {
+				InputStream is;
+
+				if (payload.data != null) {
+					writer.writeEntry(payload.name, payload.data,
+							payload.method);
+					return;
+				}
+				is = ImageUtils.openPart(payload.uri, mContext);
+				try {
+					writer.writeEntry(payload.name, is, payload.method);
+				} finally {
+					is.close();
+				}
+			}
+		}, writer.getEntryCount(), callback);
+	}
+
+	private void write(EntryWriter writer, int first,
+			ProgressUpdateCallback callback) throws IOException {
+		int n = mUriStrings.size();
+		int workers = Math.min(mWorkerCount, n - first);
+		Payload payload;
+
+		if (first >= n)
+			return;
+		synchronized (mLock) {
+			mNextToClaim = first;
+			mNextToWrite = first;
+		}
+
+		for (int i = 0; i < workers; i++) {
+			TaskScheduler.EXPORT.execute(new Runnable() {
+				@Override
+				public void run() {
+					runWorker();
+				}
+			}, this, PriorityExecutor.PRIORITY_NORMAL);
+		}
+
+		try {
+			for (int i = first; i < n; i++) {
+				payload = takePayload(i);
+				if (payload == null)
+					break;
+
+				writer.write(payload);
+				releasePayload(i, payload);
+
+				if (callback != null) {
+					if (callback.respondToProgressUpdate(i + 1, n) == false)
+						break;
+				}
+			}
+		} finally {
+			cancel();
+			TaskScheduler.EXPORT.cancel(this);
+		}
+
+		synchronized (mLock) {
+			if (mError != null)
+				throw mError;
+		}
+	}
+
+	/**
+	 * Stops the workers. Entries that have not been written yet are dropped
+	 */
+	public void cancel() {
+		synchronized (mLock) {
+			mCancelled = true;
+			mReady.clear();
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * The body of a reader worker: claims the next unclaimed index, prepares
+	 * its payload, and hands it to the writer, until there is nothing left
+	 */
+	private void runWorker() {
+		int index;
+		Payload payload;
+
+		while (true) {
+			synchronized (mLock) {
+				if (mCancelled || mNextToClaim >= mUriStrings.size())
+					return;
+				index = mNextToClaim++;
+			}
+
+			try {
+				payload = preparePayload(index);
+			} catch (IOException e) {
+				fail(e);
+				return;
+			} catch (RuntimeException e) {
+				/* a bad image should not leave the writer waiting forever */
+				fail(new IOException("Unable to export "
+						+ mUriStrings.get(index), e));
+				return;
+			}
+
+			synchronized (mLock) {
+				try {
+					while (mCancelled == false && index != mNextToWrite
+							&& mBufferedBytes > 0
+							&& mBufferedBytes + payload.getBufferedSize() > mMaxBufferedBytes)
+						mLock.wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (mCancelled)
+					return;
+				mBufferedBytes += payload.getBufferedSize();
+				mReady.put(index, payload);
+				mLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Loads a single image and turns it into a zip entry payload
+	 */
+	private Payload preparePayload(int index) throws IOException {
+		String uri = mUriStrings.get(index);
+		String name = String.format(mFileNameFormat, index);
+		String contentType;
+		ByteArrayOutputStream stream;
+		Payload payload = new Payload();
+		CRC32 crc;
+		Bitmap bmp;
+
+		if (mFormat == null) {
+			/*
+			 * passthrough: the part is already an encoded image, so it is
+			 * copied as is
+			 */
+			contentType = ImageUtils.getPartContentType(uri, mContext);
+			payload.name = name
+					+ ImageUtils.getExtensionForContentType(contentType);
+			payload.data = ImageUtils.readPart(uri, mMaxPayloadBytes, mContext);
+			if (payload.data == null) {
+				/*
+				 * too large to hold: the writer streams it, and only its
+				 * content type can decide whether deflating it is worthwhile
+				 */
+				payload.uri = uri;
+				payload.method = mStoreCompressed ? ZipCompressionPolicy
+						.getMethodForContentType(contentType)
+						: ZipEntry.DEFLATED;
+				if (payload.method != ZipEntry.STORED)
+					payload.method = ZipEntry.DEFLATED;
+				return payload;
+			}
+		} else {
+			contentType = mFormatContentType;
+			bmp = ImageUtils.getImageFromContentProvider(uri, false, 0,
+					mContext);
+			if (bmp == null)
+				throw new IOException("Unable to decode " + uri);
+			stream = new ByteArrayOutputStream();
+			bmp.compress(mFormat, 100, stream);
+			bmp.recycle();
+			payload.name = name + mFormatExtension;
+			payload.data = stream.toByteArray();
+		}
+
+		payload.method = ZipEntry.DEFLATED;
+		if (mStoreCompressed
+				&& ZipCompressionPolicy.getMethod(contentType, payload.data,
+						payload.data.length) == ZipEntry.STORED) {
+			/* STORED entries must know their crc up front */
+			crc = new CRC32();
+			crc.update(payload.data);
+			payload.method = ZipEntry.STORED;
+			payload.crc = crc.getValue();
+		}
+		return payload;
+	}
+
+	/**
+	 * Blocks until the payload at index is ready
+	 * 
+	 * @return The payload, or null if the export was cancelled
+	 */
+	private Payload takePayload(int index) throws IOException {
+		Payload payload;
+
+		synchronized (mLock) {
+			try {
+				while ((payload = mReady.remove(index)) == null) {
+					if (mError != null)
+						throw mError;
+					if (mCancelled)
+						return null;
+					mLock.wait();
+				}
+			} catch (InterruptedException e) {
+				/* the hosting task was cancelled */
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return payload;
+	}
+
+	/**
+	 * Returns a written payload's bytes to the budget, waking any worker
+	 * waiting on it
+	 */
+	private void releasePayload(int index, Payload payload) {
+		synchronized (mLock) {
+			mBufferedBytes -= payload.getBufferedSize();
+			mNextToWrite = index + 1;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Reads a streamed payload's part through once, to find its crc
+	 * 
+	 * @return The size of the part
+	 */
+	private long measure(Payload payload) throws IOException {
+		InputStream is = ImageUtils.openPart(payload.uri, mContext);
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		CRC32 crc = new CRC32();
+		long size = 0;
+		int read;
+
+		try {
+			while ((read = is.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+				size += read;
+			}
+		} finally {
+			is.close();
+		}
+		payload.crc = crc.getValue();
+		return size;
+	}
+
+	/**
+	 * Copies a streamed payload's part into the current zip entry
+	 */
+	private void copy(Payload payload, ZipOutputStream zos) throws IOException {
+		InputStream is = ImageUtils.openPart(payload.uri, mContext);
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		int read;
+
+		try {
+			while ((read = is.read(buffer)) != -1)
+				zos.write(buffer, 0, read);
+		} finally {
+			is.close();
+		}
+	}
+
+	private void fail(IOException e) {
+		synchronized (mLock) {
+			if (mError == null)
+				mError = e;
+			mCancelled = true;
+			mLock.notifyAll();
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package com.iodice.mmsexport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+/**
+ * The exports that have been queued, kept on disk so that exports cut short by
+ * the process being killed are run again the next time {@link ExportService}
+ * starts. Each export writes its own archive, and stays in the queue after it
+ * finishes until that archive has been shared or dismissed, so that the
+ * archive can be deleted. Should not be used on the main thread
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ExportQueue extends SQLiteOpenHelper {
+	private static final String DATABASE_NAME = "export_queue.db";
+	private static final int DATABASE_VERSION = 2;
+
+	/* queued export table */
+	private static final String TABLE_EXPORTS = "exports";
+	private static final String COL_ID = "_id";
+	private static final String COL_URIS = "uris";
+	private static final String COL_ARCHIVE = "archive";
+	private static final String COL_STATE = "state";
+
+	/**
+	 * {@link ExportQueue#STATE_PENDING} The export has not finished writing its
+	 * archive
+	 */
+	public static final int STATE_PENDING = 0;
+
+	/**
+	 * {@link ExportQueue#STATE_READY} The archive is complete, and waits to be
+	 * shared or dismissed
+	 */
+	public static final int STATE_READY = 1;
+
+	/**
+	 * {@link ExportQueue#STATE_SHARED} The archive has been handed to another
+	 * app, and can be deleted once that app has had the chance to read it
+	 */
+	public static final int STATE_SHARED = 2;
+
+	/* the file name of an export's archive, given its ID */
+	private static final String ARCHIVE_NAME_FORMAT = "images-%d.zip";
+
+	/* separates the URIs of an export in the uris column */
+	private static final String URI_SEPARATOR = "\n";
+
+	private static ExportQueue sInstance = null;
+
+	/**
+	 * An export read back from the queue
+	 * 
+	 * @author Nicholas M. Iodice
+	 * 
+	 */
+	public static class Entry {
+		public final long mId;
+		public final String mArchive;
+		public final ArrayList<String> mUris;
+
+		Entry(long id, String archive, ArrayList<String> uris) {
+			mId = id;
+			mArchive = archive;
+			mUris = uris;
+		}
+	}
+
+	private ExportQueue(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	/**
+	 * Returns the process wide queue
+	 * 
+	 * @param context
+	 *            Any context. Only its application context is retained
+	 */
+	public static synchronized ExportQueue getInstance(Context context) {
+		if (sInstance == null)
+			sInstance = new ExportQueue(context.getApplicationContext());
+		return sInstance;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_EXPORTS + " (" + COL_ID
+				+ " INTEGER PRIMARY KEY AUTOINCREMENT, " + COL_URIS
+				+ " TEXT NOT NULL, " + COL_ARCHIVE + " TEXT, " + COL_STATE
+				+ " INTEGER NOT NULL DEFAULT " + STATE_PENDING + ")");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_EXPORTS);
+		onCreate(db);
+	}
+
+	/**
+	 * Adds an export to the end of the queue, and names its archive
+	 * 
+	 * @param uris
+	 *            String URIs of the images to export
+	 * @return The queued export
+	 */
+	public Entry add(ArrayList<String> uris) {
+		SQLiteDatabase db = getWritableDatabase();
+		ContentValues values = new ContentValues();
+		String archive;
+		long id;
+
+		db.beginTransaction();
+		try {
+			values.put(COL_URIS, TextUtils.join(URI_SEPARATOR, uris));
+			id = db.insert(TABLE_EXPORTS, null, values);
+			archive = String.format(Locale.US, ARCHIVE_NAME_FORMAT, id);
+			values.clear();
+			values.put(COL_ARCHIVE, archive);
+			db.update(TABLE_EXPORTS, values, COL_ID + " = " + id, null);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return new Entry(id, archive, uris);
+	}
+
+	/**
+	 * Moves an export on to a later state, such as
+	 * {@link ExportQueue#STATE_READY}
+	 * 
+	 * @param archive
+	 *            The file name of the export's archive
+	 */
+	public void setState(String archive, int state) {
+		ContentValues values = new ContentValues();
+		values.put(COL_STATE, state);
+		getWritableDatabase().update(TABLE_EXPORTS, values,
+				COL_ARCHIVE + " = ?", new String[] { archive });
+	}
+
+	/**
+	 * Removes an export once its archive has been deleted, or once it has
+	 * failed or been cancelled
+	 * 
+	 * @param archive
+	 *            The file name of the export's archive
+	 */
+	public void remove(String archive) {
+		getWritableDatabase().delete(TABLE_EXPORTS, COL_ARCHIVE + " = ?",
+				new String[] { archive });
+	}
+
+	/**
+	 * @return Every export that has not finished, oldest first
+	 */
+	public List<Entry> getPending() {
+		ArrayList<Entry> pending = new ArrayList<Entry>();
+		Cursor cursor = getReadableDatabase().query(TABLE_EXPORTS,
+				new String[] { COL_ID, COL_ARCHIVE, COL_URIS },
+				COL_STATE + " = " + STATE_PENDING, null, null, null, COL_ID);
+		while (cursor.moveToNext())
+			pending.add(new Entry(cursor.getLong(0), cursor.getString(1),
+					new ArrayList<String>(Arrays.asList(TextUtils.split(
+							cursor.getString(2), URI_SEPARATOR)))));
+		cursor.close();
+		return pending;
+	}
+
+	/**
+	 * @return The file names of the archives of every export in a state
+	 */
+	public List<String> getArchives(int state) {
+		ArrayList<String> archives = new ArrayList<String>();
+		Cursor cursor = getReadableDatabase().query(TABLE_EXPORTS,
+				new String[] { COL_ARCHIVE }, COL_STATE + " = " + state, null,
+				null, null, COL_ID);
+		while (cursor.moveToNext())
+			archives.add(cursor.getString(0));
+		cursor.close();
+		return archives;
+	}
+}
@@ -0,0 +1,463 @@
+package com.iodice.mmsexport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.v4.app.NotificationCompat;
+
+/**
+ * Runs exports in the background, so they keep going at full speed when the
+ * user leaves the app. While an export runs, its progress is shown in a
+ * notification, and the service is kept in the foreground so the process is
+ * not killed.
+ * 
+ * Each export is a {@link BackgroundJob}, so the image grid can attach to it
+ * and share the archive itself when it is done. If nobody is attached when it
+ * finishes, a notification that shares the archive is shown instead. Exports
+ * are recorded in an {@link ExportQueue}, and any that were cut short by the
+ * process being killed are run again when the service next starts.
+ * 
+ * Every export writes its own archive, so a finished archive is never
+ * overwritten by a later export before it is shared. An archive whose
+ * notification is dismissed is deleted right away. One that has been shared
+ * is deleted when the next export starts, since the receiving app reads it in
+ * its own time
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ExportService extends Service {
+	private static final int NOTIFICATION_PROGRESS = 1;
+	private static final int NOTIFICATION_RESULT = 2;
+
+	/* sent by the result notification, with the archive's path */
+	private static final String ACTION_SHARE = "com.iodice.mmsexport.action.SHARE_EXPORT";
+	private static final String ACTION_DISCARD = "com.iodice.mmsexport.action.DISCARD_EXPORT";
+	private static final String EXTRA_ARCHIVE = "com.iodice.mmsexport.extra.ARCHIVE";
+
+	/**
+	 * {@link ExportService#RESUMED_TAG_PREFIX} Tags exports resumed from the
+	 * queue. Session handles do not survive the process, so these are never
+	 * attached to by a grid
+	 */
+	private static final String RESUMED_TAG_PREFIX = "export:resumed:";
+
+	private static final Handler sMainHandler = new Handler(
+			Looper.getMainLooper());
+
+	/* only touched on the main thread */
+	private static int sActiveJobs = 0;
+	private static boolean sResumeQueued = false;
+
+	private boolean mForeground = false;
+
+	/**
+	 * Queues an export of the given images. Must be called from the main
+	 * thread
+	 * 
+	 * @param tag
+	 *            Identifies the export in the {@link BackgroundJob} store
+	 * @param uris
+	 *            String URIs of the images to export
+	 * @return The export, which a listener can be attached to. It may not have
+	 *         started yet, if it is waiting on exports left over from a killed
+	 *         process
+	 */
+	public static BackgroundJob<File> export(Context context, final String tag,
+			ArrayList<String> uris) {
+		final Context appContext = context.getApplicationContext();
+		final ExportJob job = new ExportJob(appContext, null, uris);
+		Runnable start = new Runnable() {
+			public void run() {
+				startJob(appContext, tag, job);
+			}
+		};
+
+		/*
+		 * exports left over from a killed process go first. They are only
+		 * known once the queue has been read, so this one is started right
+		 * after them
+		 */
+		if (resumePending(appContext, start) == false)
+			start.run();
+		return job;
+	}
+
+	/**
+	 * Runs any exports that were cut short by the process being killed. Only
+	 * does anything the first time it is called in a process. Must be called
+	 * from the main thread
+	 */
+	public static void resumePending(Context context) {
+		resumePending(context, null);
+	}
+
+	/**
+	 * @param next
+	 *            Run on the main thread once the left over exports have been
+	 *            started, so that whatever it starts is queued behind them.
+	 *            May be null
+	 * @return false if the left over exports were already looked up in this
+	 *         process, in which case next is not run
+	 */
+	private static boolean resumePending(Context context, final Runnable next) {
+		final Context appContext = context.getApplicationContext();
+
+		if (sResumeQueued)
+			return false;
+		sResumeQueued = true;
+		TaskScheduler.EXPORT_JOBS.execute(new Runnable() {
+			public void run() {
+				final List<ExportQueue.Entry> pending = ExportQueue
+						.getInstance(appContext).getPending();
+				sMainHandler.post(new Runnable() {
+					public void run() {
+						for (ExportQueue.Entry entry : pending)
+							startJob(appContext, RESUMED_TAG_PREFIX
+									+ entry.mId, new ExportJob(appContext,
+									entry, entry.mUris));
+						if (next != null)
+							next.run();
+						if (sActiveJobs == 0)
+							appContext.stopService(new Intent(appContext,
+									ExportService.class));
+					}
+				});
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Builds a chooser that shares a zip file with a different application
+	 * 
+	 * @param zipUri
+	 *            A {@link ZipFileProvider} URI of the zip file
+	 */
+	public static Intent createShareIntent(Context context, Uri zipUri) {
+		Intent shareIntent = new Intent(Intent.ACTION_SEND);
+		List<ResolveInfo> resInfoList;
+		String packageName;
+
+		/* grant permisions for all apps that can handle given intent */
+		resInfoList = context.getPackageManager().queryIntentActivities(
+				shareIntent, PackageManager.MATCH_DEFAULT_ONLY);
+		for (ResolveInfo resolveInfo : resInfoList) {
+			packageName = resolveInfo.activityInfo.packageName;
+			context.grantUriPermission(packageName, zipUri,
+					Intent.FLAG_GRANT_READ_URI_PERMISSION);
+		}
+
+		shareIntent.putExtra(Intent.EXTRA_STREAM, zipUri);
+		shareIntent.setType("application/zip");
+		return Intent.createChooser(shareIntent,
+				context.getString(R.string.zip_image_share_message));
+	}
+
+	/**
+	 * Builds a chooser that shares a zip file written by an export
+	 */
+	public static Intent createShareIntent(Context context, File zipFile) {
+		Uri zipUri = ZipFileProvider.getUriForFile(context,
+				ZipFileProvider.AUTHORITY, zipFile);
+		ZipFileProvider.setFilesDir(context.getFilesDir().getPath());
+		return createShareIntent(context, zipUri);
+	}
+
+	/**
+	 * Records that an export's archive has been handed to another app. It is
+	 * deleted when the next export starts
+	 * 
+	 * @param zipFile
+	 *            The archive, as returned by the export
+	 */
+	public static void setShared(Context context, final File zipFile) {
+		final Context appContext = context.getApplicationContext();
+
+		TaskScheduler.EXPORT_JOBS.execute(new Runnable() {
+			public void run() {
+				ExportQueue.getInstance(appContext).setState(zipFile.getName(),
+						ExportQueue.STATE_SHARED);
+			}
+		});
+	}
+
+	/**
+	 * Deletes an export's archive, and drops the export from the queue
+	 */
+	private static void discard(Context context, final String archive) {
+		final Context appContext = context.getApplicationContext();
+
+		TaskScheduler.EXPORT_JOBS.execute(new Runnable() {
+			public void run() {
+				ResumableZipWriter.delete(getArchive(appContext, archive));
+				ExportQueue.getInstance(appContext).remove(archive);
+			}
+		});
+	}
+
+	/**
+	 * Deletes the archives of every export that has been shared. Runs on
+	 * {@link TaskScheduler#EXPORT_JOBS}
+	 */
+	private static void deleteSharedArchives(Context context) {
+		ExportQueue queue = ExportQueue.getInstance(context);
+
+		for (String archive : queue.getArchives(ExportQueue.STATE_SHARED)) {
+			ResumableZipWriter.delete(getArchive(context, archive));
+			queue.remove(archive);
+		}
+	}
+
+	/**
+	 * @return The file an archive is written to
+	 */
+	private static File getArchive(Context context, String archive) {
+		return new File(context.getFilesDir(), archive);
+	}
+
+	private static BackgroundJob<File> startJob(Context context, String tag,
+			ExportJob job) {
+		sActiveJobs++;
+		context.startService(new Intent(context, ExportService.class));
+		job.start(tag, TaskScheduler.EXPORT_JOBS);
+		return job;
+	}
+
+	private static void onJobDone(Context context) {
+		sActiveJobs--;
+		if (sActiveJobs == 0) {
+			context.stopService(new Intent(context, ExportService.class));
+			getNotificationManager(context).cancel(NOTIFICATION_PROGRESS);
+		}
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		String action = intent == null ? null : intent.getAction();
+
+		/* the result notification was touched or dismissed */
+		if (ACTION_SHARE.equals(action) || ACTION_DISCARD.equals(action)) {
+			onArchiveAction(action,
+					new File(intent.getStringExtra(EXTRA_ARCHIVE)));
+			if (sActiveJobs == 0)
+				stopSelf(startId);
+			return START_STICKY;
+		}
+
+		if (mForeground == false) {
+			startForeground(NOTIFICATION_PROGRESS,
+					buildProgressNotification(this, 0, 0));
+			mForeground = true;
+		}
+		/* a null intent means the service was restarted after being killed */
+		if (intent == null)
+			resumePending(this);
+		return START_STICKY;
+	}
+
+	private void onArchiveAction(String action, File zipFile) {
+		if (ACTION_SHARE.equals(action)) {
+			startActivity(createShareIntent(this, zipFile).addFlags(
+					Intent.FLAG_ACTIVITY_NEW_TASK));
+			setShared(this, zipFile);
+		} else {
+			discard(this, zipFile.getName());
+		}
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		stopForeground(true);
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	/**
+	 * Builds an intent that asks the service to share or discard an archive
+	 */
+	private static PendingIntent getArchiveIntent(Context context,
+			String action, long id, File zipFile) {
+		Intent intent = new Intent(context, ExportService.class).setAction(
+				action).putExtra(EXTRA_ARCHIVE, zipFile.getPath());
+		/* the request code keeps the intents of different exports apart */
+		return PendingIntent.getService(context, (int) id, intent,
+				PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+
+	private static NotificationManager getNotificationManager(Context context) {
+		return (NotificationManager) context
+				.getSystemService(Context.NOTIFICATION_SERVICE);
+	}
+
+	private static Notification buildProgressNotification(
+			Context context, int complete, int total) {
+		NotificationCompat.Builder builder = new NotificationCompat.Builder(
+				context).setSmallIcon(android.R.drawable.stat_sys_upload)
+				.setContentTitle(context.getString(R.string.export_in_progress))
+				.setOngoing(true).setOnlyAlertOnce(true);
+
+		if (total > 0)
+			builder.setContentText(
+					String.format(context
+							.getString(R.string.zip_image_update_progress_text_format),
+							complete, total)).setProgress(total, complete, false);
+		else
+			builder.setProgress(0, 0, true);
+		return builder.build();
+	}
+
+	/**
+	 * Zips a list of images, and records it in the {@link ExportQueue} until
+	 * it is done
+	 * 
+	 * @author Nicholas M. Iodice
+	 * 
+	 */
+	static class ExportJob extends BackgroundJob<File> {
+		private final Context mContext;
+		private final ArrayList<String> mUris;
+		/* the export in the queue, or null if it is not queued yet */
+		private ExportQueue.Entry mEntry;
+		private int mLastPercent = -1;
+
+		/**
+		 * @param context
+		 *            An application context, which outlives any activity
+		 * @param entry
+		 *            The export in the queue, when it is being resumed, or
+		 *            null for a new export
+		 */
+		ExportJob(Context context, ExportQueue.Entry entry,
+				ArrayList<String> uris) {
+			mContext = context;
+			mEntry = entry;
+			mUris = uris;
+		}
+
+		/**
+		 * Queries images in the background. Returns a File object
+		 * corresponding to the newly created zip file, or null if there was an
+		 * error creating that file
+		 */
+		@Override
+		protected File run() {
+			ExportQueue queue = ExportQueue.getInstance(mContext);
+			File archive;
+			File zipFile;
+
+			deleteSharedArchives(mContext);
+			if (mEntry == null)
+				mEntry = queue.add(mUris);
+			archive = getArchive(mContext, mEntry.mArchive);
+			try {
+				/*
+				 * No format is passed, so the original image data is exported
+				 * without transcoding, and already compressed images are not
+				 * deflated a second time
+				 */
+				zipFile = ImageUtils.zipFiles(mUris, null, true, archive,
+						mContext, this);
+			} catch (IOException e) {
+				e.printStackTrace();
+				zipFile = null;
+			} catch (RuntimeException e) {
+				/* resuming an export that threw would only throw again */
+				e.printStackTrace();
+				zipFile = null;
+			}
+
+			/* only an export cut short by the process dying is run again */
+			if (zipFile == null || isCancelled()) {
+				ResumableZipWriter.delete(archive);
+				queue.remove(mEntry.mArchive);
+				return null;
+			}
+			queue.setState(mEntry.mArchive, ExportQueue.STATE_READY);
+			return zipFile;
+		}
+
+		/**
+		 * Updates the progress notification, whenever the percentage done
+		 * changes
+		 */
+		@Override
+		public boolean respondToProgressUpdate(int complete, int total) {
+			int percent = (int) (100 * (float) complete / (float) total);
+			if (percent != mLastPercent) {
+				mLastPercent = percent;
+				getNotificationManager(mContext).notify(NOTIFICATION_PROGRESS,
+						buildProgressNotification(mContext, complete, total));
+			}
+			return super.respondToProgressUpdate(complete, total);
+		}
+
+		/**
+		 * Shows a notification with the result when no grid is attached to
+		 * share it
+		 */
+		@Override
+		protected boolean onFinished(File zipFile) {
+			NotificationCompat.Builder builder;
+
+			onJobDone(mContext);
+			if (isAttached())
+				return false;
+
+			builder = new NotificationCompat.Builder(mContext)
+					.setAutoCancel(true);
+			if (zipFile == null) {
+				builder.setSmallIcon(android.R.drawable.stat_notify_error)
+						.setContentTitle(
+								mContext.getString(R.string.error_writing_image_data))
+						.setContentIntent(
+								PendingIntent.getActivity(mContext, 0,
+										new Intent(mContext, MmsActivity.class),
+										0));
+			} else {
+				builder.setSmallIcon(android.R.drawable.stat_sys_upload_done)
+						.setContentTitle(mContext.getString(R.string.export_ready))
+						.setContentText(mContext.getString(R.string.export_ready_text))
+						.setContentIntent(
+								getArchiveIntent(mContext, ACTION_SHARE,
+										mEntry.mId, zipFile))
+						.setDeleteIntent(
+								getArchiveIntent(mContext, ACTION_DISCARD,
+										mEntry.mId, zipFile));
+			}
+			/* each export has its own notification, tagged by its archive */
+			getNotificationManager(mContext).notify(
+					zipFile == null ? null : zipFile.getName(),
+					NOTIFICATION_RESULT, builder.build());
+			return true;
+		}
+
+		/**
+		 * Discards the archive, if the export was cancelled after it finished
+		 */
+		@Override
+		protected void onCancelled(File zipFile) {
+			onJobDone(mContext);
+			if (zipFile != null)
+				discard(mContext, zipFile.getName());
+		}
+	}
+}
@@ -1,16 +1,17 @@
 package com.iodice.mmsexport;
 
-import java.util.List;
-
 import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.view.GestureDetectorCompat;
+import android.util.DisplayMetrics;
+import android.util.SparseArray;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
@@ -19,8 +20,9 @@ import android.view.WindowManager;
 import android.widget.ImageView;
 
 /**
- * A simple activity that shows an image full screen. A string URI path to image
- * must be passed in through an intent using the BITMAP_URI flag
+ * A simple activity that shows an image full screen. The images come from an
+ * {@link ImageSession}, whose handle is passed in through an intent using the
+ * BITMAP_SESSION_HANDLE flag, along with a URI format and a starting index
  * 
  * @author Nicholas M. Iodice
  * 
@@ -28,17 +30,40 @@ import android.widget.ImageView;
 public class FullScreenImageActivity extends Activity {
 	/* string uri format used to query image */
 	public static final String BITMAP_URI_FORMAT = "BITMAP_URI_FORMAT";
-	/* list of string image IDs */
-	public static final String BITMAP_IMAGE_ID_LIST = "BITMAP_IMAGE_ID_LIST";
-	/* index into the list of the first image to be shown */
+	/* handle of the ImageSession holding the image IDs */
+	public static final String BITMAP_SESSION_HANDLE = "BITMAP_SESSION_HANDLE";
+	/* index into the session of the first image to be shown */
 	public static final String BITMAP_IDX_TO_SHOW = "BITMAP_IDX_TO_SHOW";
 
+	/**
+	 * {@link FullScreenImageActivity#PREFETCH_AHEAD} The number of images
+	 * loaded ahead of the current one, in the direction of the last swipe
+	 */
+	private static final int PREFETCH_AHEAD = 2;
+
+	/**
+	 * {@link FullScreenImageActivity#KEEP_BEHIND} The number of images kept,
+	 * or loaded, behind the current one
+	 */
+	private static final int KEEP_BEHIND = 1;
+
 	private int mCurrIdx;
-	private List<String> mImgIDs;
+	private ImageSession mImgIDs;
 	private String mUriFormat;
 	/* detects swipes and loads new images appropriately */
 	private GestureDetectorCompat mGestureDetector;
 	private int mShortAnimationDuration;
+	/* +1 if the user last swiped toward later images, -1 if toward earlier */
+	private int mDirection = 1;
+
+	/* screen fitted images around the current one, by index */
+	private final SparseArray<Bitmap> mLoaded = new SparseArray<Bitmap>();
+	/* loads that have been started, by index */
+	private final SparseArray<ImageLoaderTask> mLoading = new SparseArray<ImageLoaderTask>();
+	/* opens the current image for zooming */
+	private DecoderTask mDecoderTask = null;
+	/* the grid thumbnail shown until the current image is loaded */
+	private Bitmap mPlaceholder = null;
 
 	protected void onCreate(Bundle savedInstanceState) {
 		Intent intent;
@@ -56,76 +81,273 @@ public class FullScreenImageActivity extends Activity {
 
 		intent = getIntent();
 		mCurrIdx = intent.getIntExtra(BITMAP_IDX_TO_SHOW, -1);
-		mImgIDs = intent.getStringArrayListExtra(BITMAP_IMAGE_ID_LIST);
+		mImgIDs = ImageSession.fromHandle(intent.getIntExtra(
+				BITMAP_SESSION_HANDLE, -1));
 		mUriFormat = intent.getStringExtra(BITMAP_URI_FORMAT);
+		if (mImgIDs == null) {
+			/* the process was restarted, and the scan results are gone */
+			finish();
+			return;
+		}
 		loadCurrentSelection();
 	}
 
+	/**
+	 * Swipes are detected before the image gets the event, since the image
+	 * consumes touches to zoom and pan. While zoomed in, swipes pan the image
+	 * instead of changing it
+	 */
 	@Override
-	public boolean onTouchEvent(MotionEvent event) {
-		mGestureDetector.onTouchEvent(event);
-		return super.onTouchEvent(event);
+	public boolean dispatchTouchEvent(MotionEvent event) {
+		if (getForeground().isZoomed() == false)
+			mGestureDetector.onTouchEvent(event);
+		return super.dispatchTouchEvent(event);
+	}
+
+	private TiledImageView getForeground() {
+		return (TiledImageView) findViewById(R.id.full_screen_image_foreground);
 	}
 
+	/**
+	 * Shows the current image, right away if it was prefetched. Then drops
+	 * images and loads that are no longer near the current one, and
+	 * prefetches its neighbors, most of them in the direction of the swipe
+	 */
 	private void loadCurrentSelection() {
-		ImageLoaderTask loaderTask;
-		String bitmapUri = String.format(mUriFormat, mImgIDs.get(mCurrIdx));
+		int first = Math.max(0, Math.min(mCurrIdx - KEEP_BEHIND * mDirection,
+				mCurrIdx + PREFETCH_AHEAD * mDirection));
+		int last = Math.min(mImgIDs.size() - 1, Math.max(mCurrIdx
+				- KEEP_BEHIND * mDirection, mCurrIdx + PREFETCH_AHEAD
+				* mDirection));
+		Bitmap bitmap = mLoaded.get(mCurrIdx);
+
+		for (int i = mLoaded.size() - 1; i >= 0; i--) {
+			if (mLoaded.keyAt(i) < first || mLoaded.keyAt(i) > last)
+				mLoaded.removeAt(i);
+		}
+		for (int i = mLoading.size() - 1; i >= 0; i--) {
+			if (mLoading.keyAt(i) < first || mLoading.keyAt(i) > last)
+				cancelLoad(mLoading.keyAt(i));
+		}
+		if (mDecoderTask != null) {
+			TaskScheduler.FULL_SCREEN.cancel(mDecoderTask);
+			mDecoderTask.cancel(true);
+			mDecoderTask = null;
+		}
+
+		if (bitmap != null) {
+			showImage(bitmap);
+		} else {
+			showPlaceholder(ThumbnailCache.getInstance().acquireLargest(
+					mImgIDs.get(mCurrIdx)));
+			load(mCurrIdx, PriorityExecutor.PRIORITY_HIGH);
+		}
+		for (int i = 1; i <= PREFETCH_AHEAD; i++)
+			load(mCurrIdx + i * mDirection, PriorityExecutor.PRIORITY_NORMAL);
+		for (int i = 1; i <= KEEP_BEHIND; i++)
+			load(mCurrIdx - i * mDirection, PriorityExecutor.PRIORITY_LOW);
+	}
+
+	/**
+	 * Starts loading an image, unless it is out of range, loaded, or already
+	 * being loaded at the same or a higher priority. A load that has not
+	 * started yet is moved up if the image is now needed sooner
+	 */
+	private void load(int index, int priority) {
+		ImageLoaderTask task;
+
+		if (index < 0 || index >= mImgIDs.size() || mLoaded.get(index) != null)
+			return;
+		task = mLoading.get(index);
+		if (task != null) {
+			if (task.mStarted || task.mPriority >= priority)
+				return;
+			cancelLoad(index);
+		}
+
+		task = new ImageLoaderTask(index, priority);
+		task.mActivity = this;
+		mLoading.put(index, task);
+		task.executeOnExecutor(TaskScheduler.FULL_SCREEN.withKey(task,
+				priority), String.format(mUriFormat, mImgIDs.get(index)));
+	}
+
+	/**
+	 * Stops the load of an image, removing it from the queue if it has not
+	 * started yet
+	 */
+	private void cancelLoad(int index) {
+		ImageLoaderTask task = mLoading.get(index);
+		if (task == null)
+			return;
+		mLoading.remove(index);
+		TaskScheduler.FULL_SCREEN.cancel(task);
+		task.cancel(true);
+	}
+
+	/**
+	 * Shows the current image's grid thumbnail, scaled up, without a fade so
+	 * that it appears on the first frame. It is kept out of the bitmap pool
+	 * until the full image has faded in over it
+	 * 
+	 * @param thumbnail
+	 *            The thumbnail, already retained by
+	 *            {@link ThumbnailCache#acquireLargest(String)}, or null to keep
+	 *            showing the previous image
+	 */
+	private void showPlaceholder(Bitmap thumbnail) {
+		TiledImageView foreground = getForeground();
 
-		loaderTask = new ImageLoaderTask();
-		loaderTask.mActivity = this;
-		loaderTask.execute(bitmapUri);
+		if (thumbnail == null)
+			return;
+		BitmapPool.getInstance().release(mPlaceholder);
+		mPlaceholder = thumbnail;
+
+		foreground.animate().cancel();
+		foreground.setAlpha(1f);
+		foreground.setImage(thumbnail, null);
+		foreground.setVisibility(View.VISIBLE);
 	}
 
 	/**
-	 * Given a string URI path to an image, load the full resolution content and
-	 * display it in the activity's ImageView
+	 * Swaps the image using a nice little animated fade, then opens the
+	 * original in the background so the user can zoom into it
+	 */
+	private void showImage(Bitmap bitmap) {
+		final TiledImageView foreground = getForeground();
+		final ImageView background = (ImageView) findViewById(R.id.full_screen_image_background);
+		final Bitmap placeholder = mPlaceholder;
+		Drawable visibleImg = foreground.getDrawable();
+		
+		mPlaceholder = null;
+		
+		if (visibleImg != null)
+			background.setImageDrawable(visibleImg);
+		background.setAlpha(1f);
+		background.setVisibility(View.VISIBLE);
+		
+		foreground.setAlpha(0f);
+		foreground.setImage(bitmap, null);
+		foreground.setVisibility(View.VISIBLE);
+		
+		background.animate().
+			alpha(0f).
+			setDuration(mShortAnimationDuration).
+			setListener(new AnimatorListenerAdapter() {
+                @Override
+                public void onAnimationEnd(Animator animation) {
+                	background.setVisibility(View.GONE);
+                	BitmapPool.getInstance().release(placeholder);
+                }
+            });
+		
+		foreground.animate().
+			alpha(1f).
+			setDuration(mShortAnimationDuration).
+			setListener(null);
+
+		mDecoderTask = new DecoderTask(mCurrIdx);
+		mDecoderTask.executeOnExecutor(TaskScheduler.FULL_SCREEN.withKey(
+				mDecoderTask, PriorityExecutor.PRIORITY_NORMAL), String
+				.format(mUriFormat, mImgIDs.get(mCurrIdx)));
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		/* nobody is left to show any image that has not been loaded yet */
+		for (int i = mLoading.size() - 1; i >= 0; i--)
+			cancelLoad(mLoading.keyAt(i));
+		if (mDecoderTask != null) {
+			TaskScheduler.FULL_SCREEN.cancel(mDecoderTask);
+			mDecoderTask.cancel(true);
+		}
+		mLoaded.clear();
+		getForeground().release();
+		BitmapPool.getInstance().release(mPlaceholder);
+		mPlaceholder = null;
+	}
+
+	/**
+	 * Given a string URI path to an image, load a version of it sampled to fit
+	 * the screen. If it is the current image, display it in the activity's
+	 * ImageView. Otherwise, keep it for when the user swipes to it
 	 * 
 	 * @author Nicholas M. Iodice
 	 * 
 	 */
 	class ImageLoaderTask extends AsyncTask<String, Void, Bitmap> {
 		public Activity mActivity;
+		final int mIndex;
+		final int mPriority;
+		volatile boolean mStarted = false;
+
+		ImageLoaderTask(int index, int priority) {
+			mIndex = index;
+			mPriority = priority;
+		}
 
 		@Override
 		protected Bitmap doInBackground(String... args) {
 			String bitmapUri = args[0];
-			return ImageUtils.getImageFromContentProvider(bitmapUri, false, 0,
-					mActivity);
+			DisplayMetrics metrics = mActivity.getResources()
+					.getDisplayMetrics();
+
+			mStarted = true;
+			if (isCancelled())
+				return null;
+			return ImageUtils.getScreenFittedImage(bitmapUri,
+					metrics.widthPixels, metrics.heightPixels, mActivity);
 		}
 
-		/**
-		 * Swaps the image using a nice little animated fade
-		 */
 		protected void onPostExecute(Bitmap bitmap) {
-			final ImageView foreground = (ImageView) mActivity
-					.findViewById(R.id.full_screen_image_foreground);
-			final ImageView background = (ImageView) mActivity
-					.findViewById(R.id.full_screen_image_background);
-			Drawable visibleImg = foreground.getDrawable();
-			
-			if (visibleImg != null)
-				background.setImageDrawable(visibleImg);
-			background.setAlpha(1f);
-			background.setVisibility(View.VISIBLE);
-			
-			foreground.setAlpha(0f);
-			foreground.setImageBitmap(bitmap);
-			foreground.setVisibility(View.VISIBLE);
-			
-			background.animate().
-				alpha(0f).
-				setDuration(mShortAnimationDuration).
-				setListener(new AnimatorListenerAdapter() {
-	                @Override
-	                public void onAnimationEnd(Animator animation) {
-	                	background.setVisibility(View.GONE);
-	                }
-	            });
-			
-			foreground.animate().
-				alpha(1f).
-				setDuration(mShortAnimationDuration).
-				setListener(null);
+			if (mLoading.get(mIndex) != this)
+				return;
+			mLoading.remove(mIndex);
+			if (bitmap == null)
+				return;
+			mLoaded.put(mIndex, bitmap);
+			if (mIndex == mCurrIdx)
+				showImage(bitmap);
+		}
+	}
+
+	/**
+	 * Opens the original of the current image, so the user can zoom into it
+	 * 
+	 * @author Nicholas M. Iodice
+	 * 
+	 */
+	class DecoderTask extends AsyncTask<String, Void, BitmapRegionDecoder> {
+		final int mIndex;
+
+		DecoderTask(int index) {
+			mIndex = index;
+		}
+
+		@Override
+		protected BitmapRegionDecoder doInBackground(String... args) {
+			if (isCancelled())
+				return null;
+			return ImageUtils.getRegionDecoder(args[0],
+					FullScreenImageActivity.this);
+		}
+
+		@Override
+		protected void onCancelled(BitmapRegionDecoder decoder) {
+			if (decoder != null)
+				decoder.recycle();
+		}
+
+		protected void onPostExecute(BitmapRegionDecoder decoder) {
+			if (decoder == null)
+				return;
+			if (mDecoderTask != this || mIndex != mCurrIdx) {
+				decoder.recycle();
+				return;
+			}
+			mDecoderTask = null;
+			getForeground().setDecoder(decoder);
 		}
 	}
 
@@ -142,11 +364,13 @@ public class FullScreenImageActivity extends Activity {
 			if (velX < 0) {
 				if (mCurrIdx < maxIdx) {
 					mCurrIdx++;
+					mDirection = 1;
 					loadNewImage = true;
 				}
 			} else {
 				if (mCurrIdx >= 1) {
 					mCurrIdx--;
+					mDirection = -1;
 					loadNewImage = true;
 				}
 			}
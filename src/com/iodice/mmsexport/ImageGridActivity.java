@@ -1,7 +1,5 @@
 package com.iodice.mmsexport;
 
-import java.util.ArrayList;
-
 import android.app.ActionBar;
 import android.content.Intent;
 import android.os.Build;
@@ -16,17 +14,19 @@ import android.os.Bundle;
  */
 public class ImageGridActivity extends BaseActionBarActivity {
 	/**
-	 * {@link ImageGridActivity#BITMAP_INTENT_ID} The ID used to retrieve an
-	 * {@code ArrayList<String>} of bitmap IDs from the {@code Intent} that
-	 * starts this activity. The IDs must correspond to images from the
+	 * {@link ImageGridActivity#SESSION_INTENT_ID} The ID used to retrieve the
+	 * handle of an {@link ImageSession} from the {@code Intent} that starts
+	 * this activity. The session's IDs must correspond to images from the
 	 * content://mms/part/<id> content provider
 	 */
-	public static String BITMAP_INTENT_ID = "bitmapID";
+	public static String SESSION_INTENT_ID = "sessionID";
+
+	private int mSessionHandle;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		ActionBar actionBar;
-		ArrayList<String> imgIDs;
+		ImageSession session;
 		Intent intent;
 		ImageGridFragment imageGridFrag;
 
@@ -39,19 +39,28 @@ public class ImageGridActivity extends BaseActionBarActivity {
 			actionBar.setHomeButtonEnabled(true);
 		}
 
-		/* receive the intent containing a bunch of image IDs */
+		/* receive the intent containing a handle to the image IDs */
 		intent = getIntent();
-		imgIDs = intent.getStringArrayListExtra(BITMAP_INTENT_ID);
-		if (imgIDs == null)
-			throw new NullPointerException("No image IDs supplied. These IDs "
-					+ "must be supplied in the intent using the "
-					+ "ImageGridActivity.BITMAP_INTENT_ID key");
+		mSessionHandle = intent.getIntExtra(SESSION_INTENT_ID, -1);
+		session = ImageSession.fromHandle(mSessionHandle);
+		if (session == null) {
+			/* the process was restarted, and the scan results are gone */
+			finish();
+			return;
+		}
 
 		if (savedInstanceState == null) {
 			imageGridFrag = new ImageGridFragment();
-			imageGridFrag.supplyImageIDs(imgIDs);
+			imageGridFrag.supplyImageSession(session);
 			getFragmentManager().beginTransaction()
 					.add(R.id.image_grid_container, imageGridFrag).commit();
 		}
 	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if (isFinishing())
+			ImageSession.release(mSessionHandle);
+	}
 }
@@ -1,20 +1,15 @@
 package com.iodice.mmsexport;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import android.app.Fragment;
 import android.content.Context;
-import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -42,10 +37,10 @@ public class ImageGridFragment extends Fragment implements OnClickListener {
 	private GridView mImageGridView = null;
 
 	/**
-	 * {@link ImageGridFragment#mImageIDs} A handle to the list of image IDs to
-	 * be processed
+	 * {@link ImageGridFragment#mImageSession} A handle to the image IDs to be
+	 * processed. More IDs may be added while the grid is visible
 	 */
-	private ArrayList<String> mImageIDs = null;
+	private ImageSession mImageSession = null;
 
 	/**
 	 * {@link ImageGridFragment#MMS_PART_URI} Identifies the table to query for
@@ -59,6 +54,25 @@ public class ImageGridFragment extends Fragment implements OnClickListener {
 	 */
 	private final int BUTTON_TAG = 1;
 
+	/**
+	 * {@link ImageGridFragment#mExportJob} The export this fragment is showing
+	 * the progress of, or null if there is none. The export runs in
+	 * {@link ExportService} and outlives the fragment's views, so they
+	 * reattach to it after a rotation
+	 */
+	private BackgroundJob<File> mExportJob = null;
+
+	private final ExportListener mExportListener = new ExportListener();
+
+	/**
+	 * {@link ImageGridFragment#mSelectNewJob} The lookup of new images this
+	 * fragment is waiting on, or null if there is none. Like the export, it
+	 * outlives the fragment's views
+	 */
+	private SelectNewJob mSelectNewJob = null;
+
+	private final SelectNewListener mSelectNewListener = new SelectNewListener();
+
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setHasOptionsMenu(true);
@@ -76,8 +90,8 @@ public class ImageGridFragment extends Fragment implements OnClickListener {
 		 * the caller may have supplied image IDs before adding the fragment to
 		 * the UI
 		 */
-		if (mImageIDs != null)
-			supplyImageIDs(mImageIDs);
+		if (mImageSession != null)
+			supplyImageSession(mImageSession);
 
 		/*
 		 * the button will divert to the hosted activity if set up in the xml
@@ -89,14 +103,35 @@ public class ImageGridFragment extends Fragment implements OnClickListener {
 		return rootView;
 	}
 
+	@Override
+	public void onActivityCreated(Bundle savedInstanceState) {
+		super.onActivityCreated(savedInstanceState);
+		/*
+		 * the export may have finished while the views were gone, in which
+		 * case its result was shown in a notification
+		 */
+		if (mImageSession != null) {
+			mExportJob = BackgroundJob.find(getExportJobTag());
+			mSelectNewJob = (SelectNewJob) BackgroundJob
+					.<boolean[]> find(getSelectNewJobTag());
+		}
+		if (mExportJob != null)
+			attachExportJob();
+		if (mSelectNewJob != null)
+			mSelectNewJob.attach(mSelectNewListener);
+	}
+
 	public void onResume() {
 		super.onResume();
 		/*
 		 * it is very likely that onResume was called because of a background
 		 * image processing task, which will likely call out of the activity
 		 * when it completes. During this task, the view may have become
-		 * disabled, so we need to re-enable it here. See ImageShareTask
+		 * disabled, so we need to re-enable it here, unless the export is
+		 * still running. See ExportService
 		 */
+		if (mExportJob != null)
+			return;
 		getView().setBackgroundColor(getResources().getColor(R.color.white));
 		getView().findViewById(R.id.image_grid).setEnabled(true);
 	}
@@ -139,21 +174,34 @@ public class ImageGridFragment extends Fragment implements OnClickListener {
 		mImageAdapter.setPlaceholderBitmap(placeholder);
 	}
 
+	public void onDestroyView() {
+		super.onDestroyView();
+		if (mExportJob != null)
+			mExportJob.detach(mExportListener);
+		if (mSelectNewJob != null)
+			mSelectNewJob.detach(mSelectNewListener);
+		if (mImageAdapter != null) {
+			mImageAdapter.setImageSession(null);
+			mImageAdapter.cancelPendingWork();
+			mImageAdapter.releaseDisplayedBitmaps();
+		}
+	}
+
 	/**
-	 * Sets up the image adapter and gridview, given a list of image IDs
+	 * Sets up the image adapter and gridview, given a session of image IDs
 	 * 
-	 * @param imgIDs
+	 * @param session
 	 */
-	public void supplyImageIDs(ArrayList<String> imgIDs) {
+	public void supplyImageSession(ImageSession session) {
 		/*
 		 * the fragment may not be visible yet, so it is important to check the
 		 * existence of the mImageAdapter and mImageGridView objects. If these
 		 * are null, the fragment has not yet been added to the UI and this
 		 * method will be re-run after the objects are created. See onCreateView
 		 */
-		mImageIDs = imgIDs;
+		mImageSession = session;
 		if (mImageAdapter != null)
-			mImageAdapter.setImageIDs(imgIDs);
+			mImageAdapter.setImageSession(session);
 		if (mImageGridView != null)
 			mImageGridView.setAdapter(mImageAdapter);
 	}
@@ -169,6 +217,9 @@ public class ImageGridFragment extends Fragment implements OnClickListener {
 		case R.id.img_select_all:
 			mImageAdapter.setSelection(mImageAdapter.SELECT_ALL, true);
 			return true;
+		case R.id.img_select_new:
+			startSelectNewJob();
+			return true;
 		default:
 			return super.onOptionsItemSelected(item);
 		}
@@ -180,8 +231,17 @@ public class ImageGridFragment extends Fragment implements OnClickListener {
 
 		switch (tag) {
 		case BUTTON_TAG:
-			ImageShareTask task = new ImageShareTask();
-			task.execute();
+			/*
+			 * by default, the archive is written by ExportService, which
+			 * outlives the grid and resumes exports cut short by the process
+			 * dying. When streaming, the archive is produced while the
+			 * receiving app reads it, so there is no need to wait for a
+			 * background task. Both record what they export in the manifest
+			 */
+			if (getResources().getBoolean(R.bool.zip_export_streaming))
+				shareImageStream();
+			else
+				startExportJob();
 			break;
 		default:
 			throw new UnsupportedOperationException();
@@ -189,178 +249,226 @@ public class ImageGridFragment extends Fragment implements OnClickListener {
 	}
 
 	/**
-	 * An async task that handels background image processing, then presents the
-	 * results by launching an intent with a handle to the zipped images. No
-	 * input parameters are required: The task will query its parent's class
-	 * members to identify which images are currently selected, and will
-	 * automatically operate on those images
+	 * Returns URI strings for every selected image
+	 * 
+	 * @return A list of URI strings, which is empty if nothing is selected
+	 */
+	private ArrayList<String> getSelectedUris() {
+		ArrayList<String> uris = new ArrayList<String>();
+		List<Integer> selected = mImageAdapter.getSelectedIndices();
+		for (Integer i : selected) {
+			uris.add(MMS_PART_URI + '/' + mImageSession.get(i));
+		}
+		return uris;
+	}
+
+	/**
+	 * Shares the selected images as a zip file that is streamed to the
+	 * receiving app by {@link ZipFileProvider}
+	 */
+	private void shareImageStream() {
+		ArrayList<String> uris = getSelectedUris();
+		Context context = getActivity();
+
+		if (uris.size() == 0) {
+			Utils.toast(R.string.no_images_selected, context);
+			return;
+		}
+		shareZipUri(ZipFileProvider.registerStream(context, uris), context);
+		mImageAdapter.setSelection(mImageAdapter.SELECT_ALL, false);
+	}
+
+	/**
+	 * Zips the selected images in {@link ExportService}, then shares the
+	 * archive. Progress is shown until it is done. If the user leaves the grid
+	 * first, the export keeps going, and its result is shown in a
+	 * notification
+	 */
+	private void startExportJob() {
+		ArrayList<String> uris;
+
+		if (mExportJob != null)
+			return;
+		uris = getSelectedUris();
+		/* back out early if nothing selected */
+		if (uris.size() == 0) {
+			Utils.toast(R.string.no_images_selected, getActivity());
+			return;
+		}
+		mExportJob = ExportService.export(getActivity(), getExportJobTag(),
+				uris);
+		attachExportJob();
+	}
+
+	/**
+	 * Selects only the images that have not been exported before, once
+	 * {@link SelectNewJob} has looked them up
+	 */
+	private void startSelectNewJob() {
+		if (mImageSession == null || mSelectNewJob != null)
+			return;
+		mSelectNewJob = new SelectNewJob(getActivity().getApplicationContext(),
+				mImageSession);
+		mSelectNewJob.start(getSelectNewJobTag(), TaskScheduler.BACKGROUND);
+		mSelectNewJob.attach(mSelectNewListener);
+	}
+
+	/**
+	 * @return The tag the lookup of this grid's new images is stored under in
+	 *         the {@link BackgroundJob} store
+	 */
+	private String getSelectNewJobTag() {
+		return "select-new:" + mImageSession.getHandle();
+	}
+
+	/**
+	 * @return The tag the export of this grid's images is stored under in the
+	 *         {@link BackgroundJob} store
+	 */
+	private String getExportJobTag() {
+		return "export:" + mImageSession.getHandle();
+	}
+
+	/**
+	 * Disables the grid and shows the progress of
+	 * {@link ImageGridFragment#mExportJob}
+	 */
+	private void attachExportJob() {
+		View rootView = getView();
+		ProgressBar progressBar = (ProgressBar) rootView
+				.findViewById(R.id.image_query_progress);
+
+		rootView.setBackgroundColor(getResources().getColor(R.color.dark));
+		rootView.findViewById(R.id.image_grid).setEnabled(false);
+		progressBar.setProgress(0);
+		rootView.findViewById(R.id.image_progress_container).setVisibility(
+				View.VISIBLE);
+		rootView.findViewById(R.id.image_share_button).setEnabled(false);
+		mExportJob.attach(mExportListener);
+	}
+
+	/**
+	 * Launches a chooser so that a zip file can be shared with a different
+	 * application
+	 * 
+	 * @param zipUri
+	 *            A {@link ZipFileProvider} URI of the zip file
+	 * @param context
+	 *            The context used to start the chooser
+	 */
+	private void shareZipUri(Uri zipUri, Context context) {
+		startActivity(ExportService.createShareIntent(context, zipUri));
+	}
+
+	/**
+	 * Finds the images that have not been exported before, as recorded in the
+	 * {@link ExportManifest}. No image is opened to decide. The job holds no
+	 * reference to the fragment, so it survives the fragment being recreated
 	 * 
 	 * @author Nicholas M. Iodice
 	 * 
 	 */
-	class ImageShareTask extends AsyncTask<Void, Integer, File> implements
-			ProgressUpdateCallback {
+	private static class SelectNewJob extends BackgroundJob<boolean[]> {
+		private final Context mContext;
+		private final ImageSession mSession;
 
 		/**
-		 * {@link ImageShareTask#urisToQuery} A list of URI strings
-		 * corresponding to selected images, which will be queried by this task
+		 * @param context
+		 *            An application context, used to open the manifest
 		 */
-		private ArrayList<String> urisToQuery;
-		private View mRootView;
-		private View mProgressContainer;
-		private ProgressBar mProgressBar;
-		private TextView mProgressText;
-		private Button mButton;
-		
-		protected void onPreExecute() {
-			urisToQuery = new ArrayList<String>();
-			List<Integer> selected = mImageAdapter.getSelectedIndices();
-			for (Integer i : selected) {
-				urisToQuery.add(MMS_PART_URI + '/' + mImageIDs.get(i));
-			}
-
-			/* back out early if nothing selected */
-			if (urisToQuery.size() == 0) {
-				Utils.toast(R.string.no_images_selected, getActivity());
-				cancel(true);
-				return;
-			}
+		SelectNewJob(Context context, ImageSession session) {
+			mContext = context;
+			mSession = session;
+		}
 
-			/* disable parent view during task */
-			mRootView = getView();
-			mProgressBar = (ProgressBar) mRootView.findViewById(R.id.image_query_progress);
-			mProgressText = (TextView) mRootView.findViewById(R.id.image_query_progress_text);
-			mButton = (Button) mRootView.findViewById(R.id.image_share_button);
-			
-			mRootView.setBackgroundColor(getResources().getColor(R.color.dark));
-			mRootView.findViewById(R.id.image_grid).setEnabled(false);
-			mProgressContainer = mRootView.findViewById(R.id.image_progress_container);
-			mProgressBar.setProgress(0);
-			mProgressContainer.setVisibility(View.VISIBLE);
-			mButton.setEnabled(false);
+		@Override
+		protected boolean[] run() {
+			return ExportManifest.getInstance(mContext).findNew(mSession);
 		}
+	}
 
-		/**
-		 * Queries images in the background. Returns a File object corresponding
-		 * to the newly created zip file, or null if null if there was an error
-		 * creating that file
-		 */
+	/**
+	 * Selects the images a {@link SelectNewJob} found to be new
+	 * 
+	 * @author Nicholas M. Iodice
+	 * 
+	 */
+	private class SelectNewListener implements
+			BackgroundJob.Listener<boolean[]> {
 		@Override
-		protected File doInBackground(Void... params) {
-			File zipFile;
-			if (isCancelled())
-				return null;
-			try {
-				/*
-				 * ImageUtils.zipFiles takes an optional callback, which we use
-				 * to update progress for the UI
-				 */
-				zipFile = ImageUtils.zipFiles(urisToQuery,
-						Bitmap.CompressFormat.JPEG, getActivity(), this);
-			} catch (IOException e) {
-				e.printStackTrace();
-				zipFile = null;
-			}
-			return zipFile;
+		public void onJobProgress(int complete, int total) {
 		}
 
 		/**
-		 * Process a file so that it can be shared to a different application.
-		 * The file parameter will be shared with another app via an intent
+		 * If no image is new, a Toast message is displayed to the user
 		 */
-		protected void onPostExecute(File zipFile) {
-			Intent shareIntent;
-			Uri zipUri;
-			Context context;
-			List<ResolveInfo> resInfoList;
-			String packageName;
-			String shareMessage;
-			context = getActivity();
-			int totalImages;
-			
-			/* context may be null if the back button was pressed */
-			if (context == null)
-				return;
-			
-			/* it looks better to auto unselect all the images */
-			if (mImageAdapter != null) {
-				totalImages = mImageAdapter.getCount();
-				for (int i = 0; i < totalImages; i++)
-					mImageAdapter.setSelection(i, false);
-			}
-			
-			if (mButton != null)
-				mButton.setEnabled(true);
-				
-			/* something has gone awry */
-			if (isCancelled() == true) {
-				if (mRootView != null) {
-					mRootView.setBackgroundColor(getResources().getColor(R.color.white));
-					mRootView.findViewById(R.id.image_grid).setEnabled(true);
-				}
-				if (mProgressContainer != null)
-					mProgressContainer.setVisibility(View.GONE);
-				return;
-			}
-			
-			/* there was a problem with the image processing */
-			if (zipFile == null) {
-				Utils.toast(R.string.error_writing_image_data, getActivity());
-				getView().findViewById(R.id.image_grid).setEnabled(true);
-				return;
-			}
-
-			/* at this point, its safe to share the content with another app */
-			shareIntent = new Intent(Intent.ACTION_SEND);
-			zipUri = ZipFileProvider.getUriForFile(context,
-					"com.iodice.mmsexport.ZipFileProvider", zipFile);
-			ZipFileProvider.setFilesDir(context.getFilesDir().getPath());
-
-			/* grant permisions for all apps that can handle given intent */
-			resInfoList = context.getPackageManager().queryIntentActivities(
-					shareIntent, PackageManager.MATCH_DEFAULT_ONLY);
-			for (ResolveInfo resolveInfo : resInfoList) {
-				packageName = resolveInfo.activityInfo.packageName;
-				context.grantUriPermission(packageName, zipUri,
-						Intent.FLAG_GRANT_READ_URI_PERMISSION);
-			}
+		@Override
+		public void onJobFinished(boolean[] isNew) {
+			boolean anyNew = false;
 
-			shareIntent.putExtra(Intent.EXTRA_STREAM, zipUri);
-			shareIntent.setType("application/zip");
-			shareMessage = getString(R.string.zip_image_share_message);
-			startActivity(Intent.createChooser(shareIntent, shareMessage));
-			
-			if (mProgressContainer != null)
-				mProgressContainer.setVisibility(View.GONE);
+			mSelectNewJob = null;
+			if (isNew == null || mImageAdapter == null)
+				return;
+			for (boolean b : isNew)
+				anyNew |= b;
+			if (anyNew == false)
+				Utils.toast(R.string.no_new_images, getActivity());
+			mImageAdapter.setSelection(isNew);
 		}
-		
-		protected void onProgressUpdate(Integer... progress) {
-			int complete = progress[0];
-			int total = progress[1];
+	}
 
+	/**
+	 * Shows the progress of an export, then presents the results by
+	 * launching an intent with a handle to the zipped images
+	 * 
+	 * @author Nicholas M. Iodice
+	 * 
+	 */
+	private class ExportListener implements BackgroundJob.Listener<File> {
+		@Override
+		public void onJobProgress(int complete, int total) {
+			View rootView = getView();
 			String fmtTxt = getString(R.string.zip_image_update_progress_text_format);
 			String updateMsg = String.format(fmtTxt, complete, total);
-			int prog = (int)(100*(float)complete/(float)total);
-			if (mProgressBar != null)
-				mProgressBar.setProgress(prog);
-			if (mProgressText != null)
-				mProgressText.setText(updateMsg);
+			int prog = (int) (100 * (float) complete / (float) total);
+
+			if (rootView == null)
+				return;
+			((ProgressBar) rootView.findViewById(R.id.image_query_progress))
+					.setProgress(prog);
+			((TextView) rootView.findViewById(R.id.image_query_progress_text))
+					.setText(updateMsg);
 		}
 
 		/**
-		 * Invoked from the image zipping function
+		 * Process a file so that it can be shared to a different application.
+		 * The file parameter will be shared with another app via an intent
 		 */
 		@Override
-		public boolean respondToProgressUpdate(int complete, int total) {
+		public void onJobFinished(File zipFile) {
+			View rootView = getView();
 			Context context = getActivity();
-			if (context == null) {
-				cancel(true);
-				return false;
+
+			mExportJob = null;
+			/* it looks better to auto unselect all the images */
+			if (mImageAdapter != null)
+				mImageAdapter.setSelection(mImageAdapter.SELECT_ALL, false);
+
+			rootView.setBackgroundColor(getResources().getColor(R.color.white));
+			rootView.findViewById(R.id.image_grid).setEnabled(true);
+			rootView.findViewById(R.id.image_progress_container).setVisibility(
+					View.GONE);
+			rootView.findViewById(R.id.image_share_button).setEnabled(true);
+
+			/* there was a problem with the image processing */
+			if (zipFile == null) {
+				Utils.toast(R.string.error_writing_image_data, context);
+				return;
 			}
-			publishProgress(new Integer[] {complete, total});
-			return true;
-		}
 
+			/* at this point, its safe to share the content with another app */
+			startActivity(ExportService.createShareIntent(context, zipFile));
+			ExportService.setShared(context, zipFile);
+		}
 	}
-
 }
@@ -0,0 +1,301 @@
+package com.iodice.mmsexport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+
+/**
+ * A local index of the image parts found in each SMS/MMS conversation. The
+ * first scan of a thread fills the index. Later scans only ask the MMS
+ * provider for messages newer than the thread's high-water mark (the largest
+ * MMS ID seen so far), and drop images whose messages have been deleted, so
+ * reopening a large thread does not rescan it from scratch
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ImageIndex extends SQLiteOpenHelper {
+	private static final String DATABASE_NAME = "image_index.db";
+	private static final int DATABASE_VERSION = 2;
+
+	/**
+	 * {@link ImageIndex#MMS_URI} Identifies the table to query for all mms
+	 * messages
+	 */
+	private static final String MMS_URI = "content://mms";
+
+	/**
+	 * {@link ImageIndex#MMS_PART_URI} Identifies the table to query for all
+	 * mms message parts
+	 */
+	private static final String MMS_PART_URI = "content://mms/part";
+
+	/**
+	 * {@link ImageIndex#PART_QUERY_CHUNK_SIZE} The number of messages whose
+	 * parts are requested in a single query to the part table
+	 */
+	static final int PART_QUERY_CHUNK_SIZE = 500;
+
+	/* image table */
+	private static final String TABLE_IMAGES = "images";
+	private static final String COL_PART_ID = "part_id";
+	private static final String COL_THREAD_ID = "thread_id";
+	private static final String COL_MSG_ID = "mid";
+	private static final String COL_CONTENT_TYPE = "ct";
+	private static final String COL_DATE = "date";
+
+	/* per thread scan state */
+	private static final String TABLE_THREADS = "threads";
+	private static final String COL_MAX_MSG_ID = "max_mid";
+
+	private static ImageIndex sInstance = null;
+
+	private ImageIndex(Context context) {
+		this(context, DATABASE_NAME);
+	}
+
+	/**
+	 * @param databaseName
+	 *            The file the index is kept in, or null to keep it in memory,
+	 *            which tests use to start from an empty index
+	 */
+	ImageIndex(Context context, String databaseName) {
+		super(context, databaseName, null, DATABASE_VERSION);
+	}
+
+	/**
+	 * Returns the process wide index
+	 * 
+	 * @param context
+	 *            Any context. Only its application context is retained
+	 */
+	public static synchronized ImageIndex getInstance(Context context) {
+		if (sInstance == null)
+			sInstance = new ImageIndex(context.getApplicationContext());
+		return sInstance;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_IMAGES + " (" + COL_PART_ID
+				+ " INTEGER PRIMARY KEY, " + COL_THREAD_ID
+				+ " INTEGER NOT NULL, " + COL_MSG_ID + " INTEGER NOT NULL, "
+				+ COL_CONTENT_TYPE + " TEXT, " + COL_DATE + " INTEGER)");
+		db.execSQL("CREATE INDEX images_by_thread ON " + TABLE_IMAGES + " ("
+				+ COL_THREAD_ID + ", " + COL_MSG_ID + ")");
+		db.execSQL("CREATE TABLE " + TABLE_THREADS + " (" + COL_THREAD_ID
+				+ " INTEGER PRIMARY KEY, " + COL_MAX_MSG_ID + " INTEGER)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		/* the index can always be rebuilt from the mms provider */
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_IMAGES);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_THREADS);
+		onCreate(db);
+	}
+
+	/**
+	 * Brings the index for a thread up to date, appending every image part ID
+	 * in it to a session in conversation order. Images that were already
+	 * indexed are appended in a single batch before the mms provider is asked
+	 * for new messages, and newly found images follow in one batch per query
+	 * 
+	 * @param resolver
+	 *            Used to query the mms provider
+	 * @param threadID
+	 *            The conversation to scan
+	 * @param session
+	 *            Receives the image part IDs as they are found
+	 * @param callback
+	 *            An optional parameter. If not null, it is invoked as new
+	 *            messages are scanned. If it returns false, the scan stops,
+	 *            and the next scan picks up after the last chunk of messages
+	 *            that was indexed
+	 */
+	public void scan(ContentResolver resolver, long threadID,
+			ImageSession session, ProgressUpdateCallback callback) {
+		SQLiteDatabase db = getWritableDatabase();
+		HashSet<String> msgIDs = new HashSet<String>();
+		ArrayList<String> newMsgIDs = new ArrayList<String>();
+		HashMap<String, Long> newMsgDates = new HashMap<String, Long>();
+		long maxMsgID = getHighWaterMark(db, threadID);
+		long msgID;
+		Cursor cursor;
+
+		/*
+		 * A single cheap query over the thread's mms rows serves two purposes:
+		 * it finds messages newer than the high-water mark, and it tells us
+		 * which previously indexed messages still exist
+		 */
+		cursor = resolver.query(Uri.parse(MMS_URI), new String[] { "_id",
+				"date" }, "thread_id = " + threadID, null, "_id");
+		if (cursor == null) {
+			appendIndexedPartIDs(db, threadID, session);
+			return;
+		}
+		while (cursor.moveToNext()) {
+			msgID = cursor.getLong(0);
+			msgIDs.add(String.valueOf(msgID));
+			if (msgID > maxMsgID) {
+				newMsgIDs.add(String.valueOf(msgID));
+				newMsgDates.put(String.valueOf(msgID), cursor.getLong(1));
+			}
+		}
+		cursor.close();
+
+		removeDeletedMessages(db, threadID, msgIDs);
+		appendIndexedPartIDs(db, threadID, session);
+		indexNewMessages(db, resolver, threadID, newMsgIDs, newMsgDates,
+				session, callback);
+	}
+
+	private long getHighWaterMark(SQLiteDatabase db, long threadID) {
+		long maxMsgID = -1;
+		Cursor cursor = db.query(TABLE_THREADS,
+				new String[] { COL_MAX_MSG_ID }, COL_THREAD_ID + " = "
+						+ threadID, null, null, null, null);
+		if (cursor.moveToFirst())
+			maxMsgID = cursor.getLong(0);
+		cursor.close();
+		return maxMsgID;
+	}
+
+	private void setHighWaterMark(SQLiteDatabase db, long threadID,
+			long maxMsgID) {
+		ContentValues values = new ContentValues();
+		values.put(COL_THREAD_ID, threadID);
+		values.put(COL_MAX_MSG_ID, maxMsgID);
+		db.replace(TABLE_THREADS, null, values);
+	}
+
+	/**
+	 * Drops indexed images whose messages are no longer in the thread
+	 * 
+	 * @param existingMsgIDs
+	 *            Every message ID currently in the thread
+	 */
+	private void removeDeletedMessages(SQLiteDatabase db, long threadID,
+			Set<String> existingMsgIDs) {
+		Set<String> deleted = new HashSet<String>();
+		Cursor cursor = db.query(true, TABLE_IMAGES,
+				new String[] { COL_MSG_ID }, COL_THREAD_ID + " = " + threadID,
+				null, null, null, null, null);
+		while (cursor.moveToNext()) {
+			if (existingMsgIDs.contains(cursor.getString(0)) == false)
+				deleted.add(cursor.getString(0));
+		}
+		cursor.close();
+
+		if (deleted.size() == 0)
+			return;
+		db.beginTransaction();
+		try {
+			for (String msgID : deleted)
+				db.delete(TABLE_IMAGES, COL_MSG_ID + " = " + msgID, null);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Queries the part table for images in the given messages, in chunks of
+	 * {@link ImageIndex#PART_QUERY_CHUNK_SIZE} messages built by
+	 * {@link PartSelections}, and adds them to the index. Non-image parts are
+	 * filtered out by the content provider. Each chunk's images are appended
+	 * to the session as soon as they are indexed.
+	 * 
+	 * The thread's high-water mark is moved past each chunk in the same
+	 * transaction that indexes it, so a scan that stops part way, or whose
+	 * query fails, is picked up by the next scan without indexing any message
+	 * twice
+	 * 
+	 * @param msgIDs
+	 *            The new message IDs, in ascending order
+	 */
+	private void indexNewMessages(SQLiteDatabase db,
+			ContentResolver resolver, long threadID, ArrayList<String> msgIDs,
+			HashMap<String, Long> msgDates, ImageSession session,
+			ProgressUpdateCallback callback) {
+		String[] projection = new String[] { "_id", "mid", "ct", };
+		Uri uri = Uri.parse(MMS_PART_URI);
+		ContentValues values = new ContentValues();
+		List<String> selections = PartSelections.build(msgIDs,
+				PART_QUERY_CHUNK_SIZE);
+		long[] found;
+		int numFound;
+		Cursor cursor;
+		Long date;
+		int total = msgIDs.size();
+		int end;
+
+		for (int chunk = 0; chunk < selections.size(); chunk++) {
+			end = PartSelections.getChunkEnd(chunk, PART_QUERY_CHUNK_SIZE,
+					total);
+			/* sorted the same way as getIndexedPartIDs */
+			cursor = resolver.query(uri, projection, selections.get(chunk),
+					null, "mid, _id");
+			/* the chunk is retried by the next scan */
+			if (cursor == null)
+				return;
+			found = new long[cursor.getCount()];
+			numFound = 0;
+			db.beginTransaction();
+			try {
+				while (cursor.moveToNext()) {
+					date = msgDates.get(cursor.getString(1));
+					values.clear();
+					values.put(COL_PART_ID, cursor.getLong(0));
+					values.put(COL_THREAD_ID, threadID);
+					values.put(COL_MSG_ID, cursor.getLong(1));
+					values.put(COL_CONTENT_TYPE, cursor.getString(2));
+					values.put(COL_DATE, date == null ? 0 : date);
+					db.replace(TABLE_IMAGES, null, values);
+					if (numFound < found.length)
+						found[numFound++] = cursor.getLong(0);
+				}
+				setHighWaterMark(db, threadID,
+						Long.parseLong(msgIDs.get(end - 1)));
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+				cursor.close();
+			}
+			session.append(found, numFound);
+
+			if (callback != null
+					&& callback.respondToProgressUpdate(end, total) == false)
+				return;
+		}
+	}
+
+	/**
+	 * Appends every indexed image part ID for a thread to a session, in
+	 * conversation order. Message IDs increase as messages arrive, so they are
+	 * used for ordering rather than the message date, which the sender's
+	 * device may have set
+	 */
+	private void appendIndexedPartIDs(SQLiteDatabase db, long threadID,
+			ImageSession session) {
+		Cursor cursor = db.query(TABLE_IMAGES, new String[] { COL_PART_ID },
+				COL_THREAD_ID + " = " + threadID, null, null, null,
+				COL_MSG_ID + ", " + COL_PART_ID);
+		long[] partIDs = new long[cursor.getCount()];
+		int n = 0;
+		while (cursor.moveToNext() && n < partIDs.length)
+			partIDs[n++] = cursor.getLong(0);
+		cursor.close();
+		session.append(partIDs, n);
+	}
+}
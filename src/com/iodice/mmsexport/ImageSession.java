@@ -0,0 +1,183 @@
+package com.iodice.mmsexport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+/**
+ * A growing list of image part IDs found in a conversation, shared between
+ * the task that discovers them and the activities that display them. A scan
+ * appends IDs in batches from a background thread, and listeners are told
+ * about each batch on the main thread, so the grid can be shown as soon as
+ * the first images are known.
+ * 
+ * Sessions are held in a process wide store and passed between activities by
+ * a small integer handle. IDs are kept in a primitive array rather than as
+ * strings, so a conversation with tens of thousands of images costs a few
+ * hundred kilobytes, and never has to fit in a Binder transaction
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ImageSession {
+	/**
+	 * Notified on the main thread as a session grows
+	 */
+	public interface Listener {
+		/**
+		 * @param newSize
+		 *            The number of IDs now in the session
+		 */
+		void onImagesAdded(int newSize);
+
+		/**
+		 * Called once no more IDs will be added
+		 */
+		void onComplete();
+	}
+
+	private static final SparseArray<ImageSession> sSessions = new SparseArray<ImageSession>();
+	private static int sNextHandle = 1;
+	private static final Handler sMainHandler = new Handler(
+			Looper.getMainLooper());
+
+	/**
+	 * {@link ImageSession#INITIAL_CAPACITY} The number of IDs a new session
+	 * has room for. The array doubles whenever it fills
+	 */
+	private static final int INITIAL_CAPACITY = 256;
+
+	private final int mHandle;
+	private long[] mImgIDs = new long[INITIAL_CAPACITY];
+	private int mSize = 0;
+	private final List<Listener> mListeners = new ArrayList<Listener>();
+	private boolean mComplete = false;
+
+	private ImageSession(int handle) {
+		mHandle = handle;
+	}
+
+	/**
+	 * Creates an empty session and adds it to the store
+	 */
+	public static ImageSession create() {
+		ImageSession session;
+		synchronized (sSessions) {
+			session = new ImageSession(sNextHandle++);
+			sSessions.put(session.mHandle, session);
+		}
+		return session;
+	}
+
+	/**
+	 * Looks up a session by its handle
+	 * 
+	 * @return The session, or null if it no longer exists (for instance, if
+	 *         the process was restarted)
+	 */
+	public static ImageSession fromHandle(int handle) {
+		synchronized (sSessions) {
+			return sSessions.get(handle);
+		}
+	}
+
+	/**
+	 * Removes a session from the store
+	 */
+	public static void release(int handle) {
+		synchronized (sSessions) {
+			sSessions.remove(handle);
+		}
+	}
+
+	public int getHandle() {
+		return mHandle;
+	}
+
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return The part ID at a position
+	 */
+	public synchronized long getId(int position) {
+		if (position < 0 || position >= mSize)
+			throw new IndexOutOfBoundsException("Invalid position " + position
+					+ ", size is " + mSize);
+		return mImgIDs[position];
+	}
+
+	/**
+	 * @return The part ID at a position, formatted the way it appears in part
+	 *         URIs and cache keys
+	 */
+	public String get(int position) {
+		return Long.toString(getId(position));
+	}
+
+	public synchronized boolean isComplete() {
+		return mComplete;
+	}
+
+	/**
+	 * Appends a batch of IDs. May be called from any thread
+	 * 
+	 * @param imgIDs
+	 *            Holds the part IDs to append, which are copied
+	 * @param count
+	 *            The number of IDs, from the start of imgIDs, to append
+	 */
+	public void append(long[] imgIDs, int count) {
+		final int newSize;
+		if (count == 0)
+			return;
+		synchronized (this) {
+			if (mSize + count > mImgIDs.length)
+				mImgIDs = Arrays.copyOf(mImgIDs,
+						Math.max(mImgIDs.length * 2, mSize + count));
+			System.arraycopy(imgIDs, 0, mImgIDs, mSize, count);
+			mSize += count;
+			newSize = mSize;
+		}
+		sMainHandler.post(new Runnable() {
+			public void run() {
+				for (Listener listener : new ArrayList<Listener>(mListeners))
+					listener.onImagesAdded(newSize);
+			}
+		});
+	}
+
+	/**
+	 * Marks the session as complete. May be called from any thread
+	 */
+	public void complete() {
+		synchronized (this) {
+			mComplete = true;
+		}
+		sMainHandler.post(new Runnable() {
+			public void run() {
+				for (Listener listener : new ArrayList<Listener>(mListeners))
+					listener.onComplete();
+			}
+		});
+	}
+
+	/**
+	 * Must be called from the main thread
+	 */
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+	}
+
+	/**
+	 * Must be called from the main thread
+	 */
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+}
@@ -1,25 +1,57 @@
 package com.iodice.mmsexport;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.view.Display;
 import android.view.WindowManager;
+import android.webkit.MimeTypeMap;
 
 public class ImageUtils {
 
+	/**
+	 * Computes the side length, in pixels, of a square thumbnail such that
+	 * about numToFitOnScreen of them fit across the shorter side of the screen
+	 * 
+	 * @param context
+	 *            The context used to look up the display
+	 * @param numToFitOnScreen
+	 *            How many thumbnails should fit across the screen
+	 * @return The thumbnail size in pixels
+	 */
+	public static int getThumbnailSize(Context context, int numToFitOnScreen) {
+		Display display;
+		Point size;
+		WindowManager wm;
+
+		/* get device screen info */
+		wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+		display = wm.getDefaultDisplay();
+		size = new Point();
+		display.getSize(size);
+		return Math.min(size.x, size.y) / Math.max(1, numToFitOnScreen);
+	}
+
 	/**
 	 * Loads a Bitmap from a specified URI
 	 * 
@@ -40,66 +72,228 @@ public class ImageUtils {
 		Uri partURI = Uri.parse(uriString);
 		InputStream is = null;
 		Bitmap bitmap = null;
-		BitmapFactory.Options opts;
-		BitmapFactory.Options opts2;
-		int maxSize;
-		Display display;
-		Point size;
-		WindowManager wm;
+
+		if (cropToScreen)
+			return getThumbnailFromContentProvider(uriString,
+					getThumbnailSize(context, numToFitOnScreen), context);
 
 		try {
 			is = context.getContentResolver().openInputStream(partURI);
-			if (cropToScreen == false) {
-				bitmap = BitmapFactory.decodeStream(is);
-				/*
-				 * cropping in order to fit an appropriate number of images on
-				 * the screen, depending on the container that will hold them
-				 */
-			} else {
-				/* get device screen info */
-				wm = (WindowManager) context
-						.getSystemService(Context.WINDOW_SERVICE);
-				display = wm.getDefaultDisplay();
-				size = new Point();
-				display.getSize(size);
-				maxSize = Math.min(size.x, size.y) / numToFitOnScreen;
-
-				/* Decode image size */
-				opts = new BitmapFactory.Options();
-				opts.inJustDecodeBounds = true;
-
-				BitmapFactory.decodeStream(is, null, opts);
-				is.close();
+			bitmap = BitmapFactory.decodeStream(is);
+		} catch (IOException e) {
+		} catch (NullPointerException npe) {
+			/*
+			 * if the calling context is no longer here, its not a problem that
+			 * we get an NPE. Otherwise, there is some type of programming error
+			 */
+			if (context != null)
+				bitmap = null;
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Loads an image sampled down so that it still fills, but is not much
+	 * larger than, an area of the given size when scaled to fit it. Unlike a
+	 * full resolution decode, the time and memory this takes are bounded by
+	 * the size of the screen rather than the size of the image
+	 * 
+	 * @param uriString
+	 *            The URI to query for the image
+	 * @param maxWidth
+	 *            The width of the area the image will be fit into
+	 * @param maxHeight
+	 *            The height of the area the image will be fit into
+	 * @param context
+	 *            The context to use when querying the content provider
+	 * @return The image, or null if it could not be loaded
+	 */
+	public static Bitmap getScreenFittedImage(String uriString, int maxWidth,
+			int maxHeight, Context context) {
+		Uri partURI = Uri.parse(uriString);
+		ParcelFileDescriptor pfd = null;
+		FileDescriptor fd;
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		double fitScale;
+		int sample = 1;
 
-				int scale = 1;
-				/* convert to the closest size that is a power of 2 */
-				if (opts.outHeight > maxSize || opts.outWidth > maxSize) {
-					scale = (int) Math.pow(
-							2,
-							(int) Math.ceil(Math.log(maxSize
-									/ (double) Math.max(opts.outHeight,
-											opts.outWidth))
-									/ Math.log(0.5)));
+		try {
+			pfd = context.getContentResolver().openFileDescriptor(partURI, "r");
+			if (pfd == null || pfd.getStatSize() < 0) {
+				/* a stream can not be read twice, so fit its longer side */
+				return decodeSampled(context, partURI,
+						Math.max(maxWidth, maxHeight));
+			}
+
+			fd = pfd.getFileDescriptor();
+			opts.inJustDecodeBounds = true;
+			BitmapFactory.decodeFileDescriptor(fd, null, opts);
+			if (opts.outWidth <= 0 || opts.outHeight <= 0)
+				return null;
+
+			/* the largest power of 2 that keeps the image at least fit size */
+			fitScale = Math.min(maxWidth / (double) opts.outWidth, maxHeight
+					/ (double) opts.outHeight);
+			while (sample * 2 * fitScale <= 1)
+				sample *= 2;
+
+			opts.inJustDecodeBounds = false;
+			opts.inSampleSize = sample;
+			return BitmapFactory.decodeFileDescriptor(fd, null, opts);
+		} catch (IOException e) {
+		} catch (NullPointerException npe) {
+			/*
+			 * if the calling context is no longer here, its not a problem that
+			 * we get an NPE. Otherwise, there is some type of programming error
+			 */
+		} catch (OutOfMemoryError e) {
+		} finally {
+			if (pfd != null) {
+				try {
+					pfd.close();
+				} catch (IOException e) {
 				}
+			}
+		}
+		return null;
+	}
 
-				/* Decode with inSampleSize */
-				opts2 = new BitmapFactory.Options();
-				opts2.inSampleSize = scale;
-				is = context.getContentResolver().openInputStream(partURI);
-				bitmap = BitmapFactory.decodeStream(is, null, opts2);
-				is.close();
+	/**
+	 * Opens an image so that any region of it can be decoded at full
+	 * resolution. A part backed by a file is mapped from its descriptor rather
+	 * than copied into the heap, so the part does not stay open either way.
+	 * Only a part that can only be read as a stream is copied into memory
+	 * 
+	 * @param uriString
+	 *            The URI to query for the image
+	 * @param context
+	 *            The context to use when querying the content provider
+	 * @return A decoder, which the caller must recycle, or null if the image's
+	 *         format does not support region decoding
+	 */
+	public static BitmapRegionDecoder getRegionDecoder(String uriString,
+			Context context) {
+		Uri partURI = Uri.parse(uriString);
+		ParcelFileDescriptor pfd = null;
+		InputStream is = null;
+
+		try {
+			pfd = context.getContentResolver().openFileDescriptor(partURI, "r");
+			/* pipes and sockets report no size, and can not be mapped */
+			if (pfd != null && pfd.getStatSize() >= 0)
+				return BitmapRegionDecoder.newInstance(pfd.getFileDescriptor(),
+						false);
 
-				/* crop to a square */
-				if (bitmap.getWidth() >= bitmap.getHeight()) {
-					bitmap = Bitmap.createBitmap(bitmap, bitmap.getWidth() / 2
-							- bitmap.getHeight() / 2, 0, bitmap.getHeight(),
-							bitmap.getHeight());
-				} else {
-					bitmap = Bitmap.createBitmap(bitmap, 0, bitmap.getHeight()
-							/ 2 - bitmap.getWidth() / 2, bitmap.getWidth(),
-							bitmap.getWidth());
+			is = context.getContentResolver().openInputStream(partURI);
+			if (is == null)
+				return null;
+			return BitmapRegionDecoder.newInstance(is, false);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (pfd != null) {
+				try {
+					pfd.close();
+				} catch (IOException e) {
+				}
+			}
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
 				}
 			}
+		}
+	}
+
+	/**
+	 * {@link ImageUtils#BOUNDS_MARK_LIMIT} When a part can only be read as a
+	 * stream, this much of it is buffered while its bounds are read, so the
+	 * stream can be rewound for the real decode instead of opened again
+	 */
+	private static final int BOUNDS_MARK_LIMIT = 64 * 1024;
+
+	/**
+	 * {@link ImageUtils#MIN_EXIF_THUMBNAIL_FILL} An embedded EXIF thumbnail
+	 * is used if its shorter side is at least this fraction of the requested
+	 * size. Scaling it up a little looks fine in a grid cell, and is much
+	 * cheaper than decoding the full image
+	 */
+	private static final double MIN_EXIF_THUMBNAIL_FILL = 0.75;
+
+	/**
+	 * {@link ImageUtils#MAX_ASPECT_DIFFERENCE} Some cameras pad the EXIF
+	 * thumbnail of a wide photo with black bars. Thumbnails whose aspect ratio
+	 * differs from the image's by more than this are not used
+	 */
+	private static final double MAX_ASPECT_DIFFERENCE = 0.02;
+
+	/**
+	 * Loads a square thumbnail from a specified URI. A JPEG's embedded EXIF
+	 * thumbnail is used when it is large enough. Otherwise, where possible,
+	 * only the image's centered square is decoded, sampled down close to
+	 * maxSize, using a {@link BitmapRegionDecoder}. Formats it can not
+	 * handle, such as GIF and BMP, are decoded whole and then cropped.
+	 * 
+	 * The part is opened once. Every pass reads from the same file descriptor,
+	 * or, if the provider can only supply a stream, from a buffered stream
+	 * that is rewound between the bounds probe and the decode
+	 * 
+	 * @param uriString
+	 *            The URI to query for the image
+	 * @param maxSize
+	 *            The side length, in pixels, the thumbnail will be displayed
+	 *            at. See {@link ImageUtils#getThumbnailSize(Context, int)}
+	 * @param context
+	 *            The context to use when querying the content provider
+	 * @return The thumbnail, or null if the image could not be loaded
+	 */
+	public static Bitmap getThumbnailFromContentProvider(String uriString,
+			int maxSize, Context context) {
+		Uri partURI = Uri.parse(uriString);
+		ParcelFileDescriptor pfd = null;
+		FileDescriptor fd;
+		BitmapFactory.Options bounds;
+		Bitmap bitmap = null;
+		Bitmap uncropped;
+
+		try {
+			pfd = context.getContentResolver().openFileDescriptor(partURI, "r");
+			/* pipes and sockets report no size, and can not be read twice */
+			if (pfd != null && pfd.getStatSize() >= 0) {
+				fd = pfd.getFileDescriptor();
+				bounds = new BitmapFactory.Options();
+				bounds.inJustDecodeBounds = true;
+				BitmapFactory.decodeFileDescriptor(fd, null, bounds);
+				if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+					return null;
+				bounds.inPreferredConfig = ThumbnailFormat.getConfig(context,
+						bounds.outMimeType);
+
+				if ("image/jpeg".equals(bounds.outMimeType))
+					bitmap = decodeExifThumbnail(fd, bounds, maxSize);
+				if (bitmap == null && isRegionDecodable(bounds.outMimeType))
+					bitmap = decodeCenterSquare(fd, maxSize,
+							bounds.inPreferredConfig);
+				if (bitmap == null) {
+					rewind(fd);
+					bitmap = decodeSampled(fd, bounds, maxSize);
+				}
+			} else
+				bitmap = decodeSampled(context, partURI, maxSize);
+			if (bitmap != null && bitmap.getWidth() != bitmap.getHeight()) {
+				uncropped = bitmap;
+				bitmap = cropToSquare(uncropped);
+				if (bitmap != uncropped)
+					BitmapPool.getInstance().discard(uncropped);
+			}
 		} catch (IOException e) {
 		} catch (NullPointerException npe) {
 			/*
@@ -109,9 +303,9 @@ public class ImageUtils {
 			if (context != null)
 				bitmap = null;
 		} finally {
-			if (is != null) {
+			if (pfd != null) {
 				try {
-					is.close();
+					pfd.close();
 				} catch (IOException e) {
 				}
 			}
@@ -120,95 +314,450 @@ public class ImageUtils {
 	}
 
 	/**
-	 * Retrieves images specified by uriStrings and puts them into a zip file
-	 * specified by filename. The caller is responsible for properly handeling
-	 * any exceptions thrown
+	 * Decodes only the centered square of an image, sampled so that the
+	 * square's side is close to maxSize. Nothing outside the square is
+	 * allocated, so no bitmap has to be cropped and thrown away
+	 * 
+	 * @param config
+	 *            The pixel format to decode in
+	 * @return The square, or null if the image's format is not supported by
+	 *         {@link BitmapRegionDecoder}
+	 */
+	private static Bitmap decodeCenterSquare(FileDescriptor fd, int maxSize,
+			Bitmap.Config config) {
+		BitmapRegionDecoder decoder;
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		Rect square;
+		int side;
+		int left;
+		int top;
+
+		try {
+			decoder = BitmapRegionDecoder.newInstance(fd, false);
+		} catch (IOException e) {
+			return null;
+		}
+		try {
+			side = Math.min(decoder.getWidth(), decoder.getHeight());
+			if (side <= 0)
+				return null;
+			left = (decoder.getWidth() - side) / 2;
+			top = (decoder.getHeight() - side) / 2;
+			square = new Rect(left, top, left + side, top + side);
+			opts.inSampleSize = getSampleSize(side, side, maxSize);
+			opts.inPreferredConfig = config;
+			BitmapPool.getInstance().prepareDecode(opts, side, side, true);
+			try {
+				return decoder.decodeRegion(square, opts);
+			} catch (IllegalArgumentException e) {
+				/* the pooled bitmap did not fit after all */
+				BitmapPool.getInstance().reject(opts);
+				return decoder.decodeRegion(square, opts);
+			}
+		} finally {
+			decoder.recycle();
+		}
+	}
+
+	/**
+	 * Decodes the thumbnail embedded in a JPEG's EXIF data, if it is large
+	 * enough to be shown at maxSize and has the same shape as the image. Only
+	 * the start of the file is read, and the descriptor is rewound afterwards
+	 * 
+	 * @param bounds
+	 *            The options the image's bounds were read with, with
+	 *            inPreferredConfig set to the pixel format to decode in
+	 * @return The whole thumbnail, uncropped, or null if it can not be used
+	 */
+	private static Bitmap decodeExifThumbnail(FileDescriptor fd,
+			BitmapFactory.Options bounds, int maxSize) throws IOException {
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		byte[] data;
+		double aspect;
+		double exifAspect;
+
+		try {
+			/* the stream does not own fd, so it is not closed here */
+			data = ExifThumbnail.read(new BufferedInputStream(
+					new FileInputStream(fd)));
+		} catch (EOFException e) {
+			data = null;
+		} finally {
+			rewind(fd);
+		}
+		if (data == null)
+			return null;
+
+		opts.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+		if (Math.min(opts.outWidth, opts.outHeight) < maxSize
+				* MIN_EXIF_THUMBNAIL_FILL)
+			return null;
+		aspect = bounds.outWidth / (double) bounds.outHeight;
+		exifAspect = opts.outWidth / (double) opts.outHeight;
+		if (Math.abs(aspect - exifAspect) > aspect * MAX_ASPECT_DIFFERENCE)
+			return null;
+
+		opts.inJustDecodeBounds = false;
+		opts.inPreferredConfig = bounds.inPreferredConfig;
+		/* sampled by the shorter side, since the thumbnail is cropped to it */
+		opts.inSampleSize = getSampleSize(
+				Math.min(opts.outWidth, opts.outHeight),
+				Math.min(opts.outWidth, opts.outHeight), maxSize);
+		BitmapPool.getInstance().prepareDecode(opts, opts.outWidth,
+				opts.outHeight, false);
+		try {
+			return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+		} catch (IllegalArgumentException e) {
+			/* the pooled bitmap did not fit after all */
+			BitmapPool.getInstance().reject(opts);
+			return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+		}
+	}
+
+	/**
+	 * @return true if {@link BitmapRegionDecoder} can decode images of this
+	 *         type
+	 */
+	private static boolean isRegionDecodable(String mimeType) {
+		return "image/jpeg".equals(mimeType) || "image/png".equals(mimeType)
+				|| "image/webp".equals(mimeType);
+	}
+
+	/**
+	 * Moves a file descriptor back to the start of its file. A region decoder
+	 * may leave it anywhere, while BitmapFactory decodes from wherever it is
+	 */
+	private static void rewind(FileDescriptor fd) throws IOException {
+		/* the stream does not own fd, so it is not closed here */
+		new FileInputStream(fd).getChannel().position(0);
+	}
+
+	/**
+	 * Decodes a whole image, sampled down close to maxSize. BitmapFactory
+	 * restores the descriptor's offset after each decode, so the same
+	 * descriptor that the bounds were read from can be decoded from
+	 * 
+	 * @param opts
+	 *            The options the image's bounds were read with, with
+	 *            inPreferredConfig set to the pixel format to decode in
+	 */
+	private static Bitmap decodeSampled(FileDescriptor fd,
+			BitmapFactory.Options opts, int maxSize) {
+		opts.inJustDecodeBounds = false;
+		opts.inSampleSize = getSampleSize(opts.outWidth, opts.outHeight,
+				maxSize);
+		BitmapPool.getInstance().prepareDecode(opts, opts.outWidth,
+				opts.outHeight, false);
+		try {
+			return BitmapFactory.decodeFileDescriptor(fd, null, opts);
+		} catch (IllegalArgumentException e) {
+			/* the pooled bitmap did not fit after all */
+			BitmapPool.getInstance().reject(opts);
+			return BitmapFactory.decodeFileDescriptor(fd, null, opts);
+		}
+	}
+
+	/**
+	 * Reads an image's bounds, then decodes it sampled down close to maxSize,
+	 * for parts that can only be read as a stream. The stream is rewound after
+	 * the bounds are read. It is only opened a second time if the image's
+	 * header did not fit in {@link ImageUtils#BOUNDS_MARK_LIMIT}
+	 */
+	private static Bitmap decodeSampled(Context context, Uri partURI,
+			int maxSize) throws IOException {
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		InputStream is = null;
+
+		try {
+			is = new BufferedInputStream(context.getContentResolver()
+					.openInputStream(partURI), BOUNDS_MARK_LIMIT);
+			is.mark(BOUNDS_MARK_LIMIT);
+			opts.inJustDecodeBounds = true;
+			BitmapFactory.decodeStream(is, null, opts);
+			if (opts.outWidth <= 0 || opts.outHeight <= 0)
+				return null;
+
+			try {
+				is.reset();
+			} catch (IOException e) {
+				is.close();
+				is = context.getContentResolver().openInputStream(partURI);
+			}
+
+			opts.inJustDecodeBounds = false;
+			opts.inPreferredConfig = ThumbnailFormat.getConfig(context,
+					opts.outMimeType);
+			opts.inSampleSize = getSampleSize(opts.outWidth, opts.outHeight,
+					maxSize);
+			/* a stream can not be rewound to retry, so reuse only exact fits */
+			BitmapPool.getInstance().prepareDecode(opts, opts.outWidth,
+					opts.outHeight, true);
+			return BitmapFactory.decodeStream(is, null, opts);
+		} finally {
+			if (is != null)
+				is.close();
+		}
+	}
+
+	/**
+	 * Picks the power of 2 to sample an image by, so that its larger side is
+	 * as close as possible to maxSize, without going over
+	 */
+	private static int getSampleSize(int width, int height, int maxSize) {
+		int scale = 1;
+		/* convert to the closest size that is a power of 2 */
+		if (height > maxSize || width > maxSize) {
+			scale = (int) Math.pow(
+					2,
+					(int) Math.ceil(Math.log(maxSize
+							/ (double) Math.max(height, width))
+							/ Math.log(0.5)));
+		}
+		return scale;
+	}
+
+	/**
+	 * Crops a bitmap to a centered square. The square is mutable, so it can be
+	 * pooled once it is no longer used
+	 */
+	private static Bitmap cropToSquare(Bitmap bitmap) {
+		int side = Math.min(bitmap.getWidth(), bitmap.getHeight());
+		int left = (bitmap.getWidth() - side) / 2;
+		int top = (bitmap.getHeight() - side) / 2;
+
+		return BitmapPool.getInstance().copyRegion(bitmap,
+				new Rect(left, top, left + side, top + side), side, side);
+	}
+
+	/**
+	 * {@link ImageUtils#COPY_BUFFER_SIZE} The chunk size used when copying raw
+	 * part data into an archive
+	 */
+	private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Queries the content type of an MMS part, as stored in the part's 'ct'
+	 * column
+	 * 
+	 * @param uriString
+	 *            String representation of the URI to the part
+	 * @param context
+	 *            The context to use when querying the content provider
+	 * @return The MIME type of the part, or null if it could not be found
+	 */
+	public static String getPartContentType(String uriString, Context context) {
+		String contentType = null;
+		Cursor cursor;
+
+		cursor = context.getContentResolver().query(Uri.parse(uriString),
+				new String[] { "ct" }, null, null, null);
+		if (cursor == null)
+			return null;
+		if (cursor.moveToFirst())
+			contentType = cursor.getString(0);
+		cursor.close();
+		return contentType;
+	}
+
+	/**
+	 * Maps a MIME type to a file extension, including the leading '.'
+	 * 
+	 * @param contentType
+	 *            The MIME type, i.e., "image/jpeg". May be null
+	 * @return A file extension appropriate for the content type
+	 */
+	public static String getExtensionForContentType(String contentType) {
+		String ext = null;
+
+		if (contentType != null) {
+			contentType = contentType.toLowerCase(Locale.US);
+			/* not a registered type, but some devices store it anyways */
+			if (contentType.equals("image/jpg"))
+				contentType = "image/jpeg";
+			ext = MimeTypeMap.getSingleton().getExtensionFromMimeType(
+					contentType);
+		}
+		if (ext == null)
+			ext = "unknown";
+		return "." + ext;
+	}
+
+	/**
+	 * Opens the raw bytes of a content URI for reading
+	 * 
+	 * @param uriString
+	 *            String representation of the URI to read
+	 * @param context
+	 *            The context to use when querying the content provider
+	 * @return The content. The caller must close it
+	 * @throws IOException
+	 *             If the content can not be opened
+	 */
+	public static InputStream openPart(String uriString, Context context)
+			throws IOException {
+		InputStream is = context.getContentResolver().openInputStream(
+				Uri.parse(uriString));
+		if (is == null)
+			throw new IOException("Unable to open " + uriString);
+		return is;
+	}
+
+	/**
+	 * Reads the raw bytes of a content URI into memory, in chunks of
+	 * {@link ImageUtils#COPY_BUFFER_SIZE}, unless there are too many of them
+	 * 
+	 * @param uriString
+	 *            String representation of the URI to read
+	 * @param maxBytes
+	 *            The largest content that may be read into memory, which
+	 *            must be less than {@link Integer#MAX_VALUE}. Reading stops as
+	 *            soon as the content is found to be larger
+	 * @param context
+	 *            The context to use when querying the content provider
+	 * @return The content, or null if it is larger than maxBytes. The array
+	 *         is sized exactly to the content
+	 * @throws IOException
+	 *             If reading the content fails
+	 */
+	public static byte[] readPart(String uriString, int maxBytes,
+			Context context) throws IOException {
+		byte[] data = new byte[(int) Math.min(COPY_BUFFER_SIZE,
+				maxBytes + 1L)];
+		InputStream is = openPart(uriString, context);
+		int total = 0;
+		int read;
+
+		try {
+			while ((read = is.read(data, total, data.length - total)) != -1) {
+				total += read;
+				if (total > maxBytes)
+					return null;
+				if (total == data.length)
+					data = Arrays.copyOf(data,
+							(int) Math.min(data.length * 2L, maxBytes + 1L));
+			}
+		} finally {
+			is.close();
+		}
+		return total == data.length ? data : Arrays.copyOf(data, total);
+	}
+
+	/**
+	 * Equivalent to
+	 * {@link ImageUtils#zipFiles(ArrayList, Bitmap.CompressFormat, boolean, File, Context, ProgressUpdateCallback)}
+	 * with every entry deflated
+	 */
+	public static File zipFiles(ArrayList<String> uriStrings,
+			Bitmap.CompressFormat format, File zipFile, Context context,
+			ProgressUpdateCallback callback) throws IOException {
+		return zipFiles(uriStrings, format, false, zipFile, context, callback);
+	}
+
+	/**
+	 * Retrieves images specified by uriStrings and puts them into the zip file
+	 * zipFile. The caller is responsible for properly handeling
+	 * any exceptions thrown. Images are fetched in parallel by an
+	 * {@link ExportPipeline}, but are always written in the order given.
+	 * 
+	 * The archive is written by a {@link ResumableZipWriter}. If an export of
+	 * the same images with the same options was interrupted, by cancellation,
+	 * an error, or the process dying, the images it had already written are
+	 * kept and only the rest are fetched. Once the archive is complete, its
+	 * images are recorded in the {@link ExportManifest}
 	 * 
 	 * @param uriStrings
 	 *            String representations of URIs to the images
 	 * @param format
 	 *            The desired compression format to use. PNG is slow, JPEG is
-	 *            fast, but there is a quality tradeoff
+	 *            fast, but there is a quality tradeoff. If null, no
+	 *            transcoding is done: the original bytes of each part are
+	 *            copied into the archive, and the file extension is taken from
+	 *            the part's content type
+	 * @param storeCompressed
+	 *            If true, entries whose data is already compressed are written
+	 *            with {@link ZipEntry#STORED} instead of being deflated. The
+	 *            choice is made per entry by {@link ZipCompressionPolicy}
+	 * @param zipFile
+	 *            The archive to write, in the app's files directory. Its
+	 *            journal is kept alongside it
 	 * @param callback
 	 *            An optional parameter. If not null, the onProgressUpdate
 	 *            callback will be invoked as items are added to the zipped
 	 *            object. If the callback returns false, the image query will
 	 *            stop processing images
-	 * @return a File object pointing to the newly created zip file
+	 * @return a File object pointing to the newly created zip file, or null if
+	 *         the callback stopped the export, or the pipeline stopped before
+	 *         every image was written. The archive is then incomplete, and is
+	 *         left with its journal so it can be resumed
 	 * @throws IOException
 	 *             If reading or writing to disk fails
 	 */
 	public static File zipFiles(ArrayList<String> uriStrings,
-			Bitmap.CompressFormat format, Context context,
-			ProgressUpdateCallback callback) throws IOException {
-		/* file formatting variables */
-		String imageFileName = context
-				.getString(R.string.zip_image_individual_file_format);
-		String zipFileName = context.getString(R.string.zip_image_file_name);
-		String aFile;
-		String uri;
-		int n = uriStrings.size();
-		/* file handeling variables */
-		ByteArrayOutputStream stream;
-		FileOutputStream outputStream;
-		ZipOutputStream zos;
-		byte[] byteArray;
-		Bitmap bmp = null;
-		ZipEntry entry;
+			Bitmap.CompressFormat format, boolean storeCompressed,
+			File zipFile, Context context, ProgressUpdateCallback callback)
+			throws IOException {
+		String zipFileName = zipFile.getName();
+		ResumableZipWriter writer;
+		ExportPipeline pipeline;
 		File returnFile;
-
-		switch (format) {
-		case JPEG:
-			imageFileName += ".jpeg";
-			break;
-		case PNG:
-			imageFileName += ".png";
-			break;
-		case WEBP:
-			imageFileName += ".webp";
-			break;
-		default:
-			imageFileName += ".unknown";
-			break;
-		}
+		long[] hashes = null;
 
 		/*
-		 * General method to zip files: 1. Open a file stream, create a
-		 * ZipOutputStream object 2. Load each bitmap, and create a new zip
-		 * entry for each. Zip entries are essentially file info. The bitmap
-		 * will be written into the ZipOutputStream as a byte array, so no image
-		 * caching is necessary Documentation:
-		 * http://developer.android.com/reference
-		 * /java/util/zip/ZipOutputStream.html
+		 * The writer resumes where an interrupted export of the same images
+		 * left off, and the pipeline only fetches the images after that. The
+		 * central directory is written once every image is in
 		 */
-		outputStream = context
-				.openFileOutput(zipFileName, Context.MODE_PRIVATE);
-		zos = new ZipOutputStream(new BufferedOutputStream(outputStream));
-
-		for (int i = 0; i < n; i++) {
-			uri = uriStrings.get(i);
-			bmp = getImageFromContentProvider(uri, false, 0, context);
-			aFile = String.format(imageFileName, i);
-			stream = new ByteArrayOutputStream();
-			bmp.compress(format, 100, stream);
-			byteArray = stream.toByteArray();
-			entry = new ZipEntry(aFile);
-			zos.putNextEntry(entry);
-			zos.write(byteArray);
-			zos.closeEntry();
-
-			if (callback != null) {
-				if (callback.respondToProgressUpdate(i + 1, n) == false)
-					break;
+		writer = new ResumableZipWriter(zipFile, getExportKey(uriStrings,
+				format, storeCompressed));
+		pipeline = new ExportPipeline(uriStrings, format, storeCompressed,
+				context);
+		try {
+			pipeline.writeTo(writer, callback);
+			if (writer.getEntryCount() == uriStrings.size()) {
+				/*
+				 * an entry holds the part's own bytes only when nothing was
+				 * transcoded
+				 */
+				hashes = new long[uriStrings.size()];
+				for (int i = 0; i < hashes.length; i++)
+					hashes[i] = format == null ? writer.getEntryCrc(i)
+							: ExportManifest.NO_HASH;
+				writer.finish();
 			}
+		} finally {
+			writer.close();
 		}
-
-		zos.close();
-		outputStream.flush();
-		outputStream.close();
+		/* a fragment with no central directory is not an archive */
+		if (hashes == null)
+			return null;
+		ExportManifest.getInstance(context).record(uriStrings, hashes,
+				zipFileName);
 
 		returnFile = new File(context.getFilesDir(), "files");
 		returnFile = new File(returnFile, zipFileName);
 		return returnFile;
 	}
+
+	/**
+	 * Identifies an export by its images and options, so that an interrupted
+	 * export is only resumed by the same export
+	 */
+	private static String getExportKey(ArrayList<String> uriStrings,
+			Bitmap.CompressFormat format, boolean storeCompressed) {
+		MessageDigest digest;
+		StringBuilder key = new StringBuilder();
+
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		digest.update((format + " " + storeCompressed).getBytes());
+		for (String uri : uriStrings)
+			digest.update(("\n" + uri).getBytes());
+		for (byte b : digest.digest())
+			key.append(String.format(Locale.US, "%02x", b));
+		return uriStrings.size() + "-" + key;
+	}
 }
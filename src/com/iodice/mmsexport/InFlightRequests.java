@@ -0,0 +1,95 @@
+package com.iodice.mmsexport;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A table of loads that are currently running, keyed by what they load. The
+ * first caller to ask for a key runs the load on its own thread. Callers that
+ * ask for the same key while it is running wait for, and share, that result
+ * instead of starting a second load. An entry is removed as soon as its load
+ * finishes, fails or is cancelled, so nothing is remembered once the work is
+ * done.
+ * 
+ * The table is bounded. Once it is full, further loads simply run without
+ * being shared
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ * @param <V>
+ *            The type of value being loaded
+ */
+public class InFlightRequests<V> {
+	private final int mMaxEntries;
+	private final Map<String, FutureTask<V>> mPending = new HashMap<String, FutureTask<V>>();
+
+	/**
+	 * @param maxEntries
+	 *            The most loads to track at once
+	 */
+	public InFlightRequests(int maxEntries) {
+		mMaxEntries = maxEntries;
+	}
+
+	/**
+	 * @return true if a load for key is currently running
+	 */
+	public synchronized boolean contains(String key) {
+		return mPending.containsKey(key);
+	}
+
+	/**
+	 * Returns the value for key, either by attaching to a load that is already
+	 * running, or by running loader on the calling thread
+	 * 
+	 * @param key
+	 *            Identifies what is being loaded
+	 * @param loader
+	 *            Loads the value if no one else is
+	 * @return The loaded value, or null if the load failed, was cancelled, or
+	 *         the calling thread was interrupted while waiting
+	 */
+	public V get(String key, Callable<V> loader) {
+		FutureTask<V> task;
+		boolean owner = false;
+
+		synchronized (this) {
+			task = mPending.get(key);
+			if (task == null) {
+				task = new FutureTask<V>(loader);
+				owner = true;
+				if (mPending.size() < mMaxEntries)
+					mPending.put(key, task);
+			}
+		}
+
+		if (owner) {
+			try {
+				task.run();
+			} finally {
+				remove(key, task);
+			}
+		}
+
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+		} catch (CancellationException e) {
+		}
+		return null;
+	}
+
+	/**
+	 * Removes key's entry, but only if it still refers to task
+	 */
+	private synchronized void remove(String key, FutureTask<V> task) {
+		if (mPending.get(key) == task)
+			mPending.remove(key);
+	}
+}
@@ -11,5 +11,8 @@ public class MmsActivity extends BaseActionBarActivity {
 		if (savedInstanceState == null)
 			getFragmentManager().beginTransaction()
 					.add(R.id.mms_container, new MmsFragment()).commit();
+
+		/* finish any export the process was killed in the middle of */
+		ExportService.resumePending(this);
 	}
 }
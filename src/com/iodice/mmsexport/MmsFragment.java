@@ -11,7 +11,6 @@ import android.content.Loader;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -68,18 +67,6 @@ public class MmsFragment extends Fragment implements
 	 */
 	private static final String SMS_MMS_THREAD_URI = "content://mms-sms/conversations/?simple=true";
 
-	/**
-	 * {@link MmsFragment#SMS_MMS_THREAD_URI} Identifies the table to query for
-	 * all mms/sms threads
-	 */
-	private static final String SMS_MMS_THREAD_WITH_ID_URI = "content://mms-sms/conversations";
-
-	/**
-	 * {@link MmsFragment#MMS_PART_URI} Identifies the table to query for all
-	 * mms message parts
-	 */
-	private static final String MMS_PART_URI = "content://mms/part";
-
 	/**
 	 * {@link MmsFragment#mThreadAdapter} A handle to the thread list adapter
 	 */
@@ -102,6 +89,21 @@ public class MmsFragment extends Fragment implements
 	 */
 	private final String FILTER_TAG = "FILTER_TAG";
 
+	/**
+	 * {@link MmsFragment#SCAN_JOB_TAG} Identifies the conversation scan in the
+	 * {@link BackgroundJob} store
+	 */
+	private static final String SCAN_JOB_TAG = "scan";
+
+	/**
+	 * {@link MmsFragment#mScanJob} The scan this fragment is showing the
+	 * progress of, or null if there is none. The scan outlives the fragment,
+	 * so a fragment recreated after a rotation reattaches to it
+	 */
+	private ScanJob mScanJob = null;
+
+	private final ScanListener mScanListener = new ScanListener();
+
 	public MmsFragment() {
 	}
 
@@ -139,6 +141,35 @@ public class MmsFragment extends Fragment implements
 		return rootView;
 	}
 
+	@Override
+	public void onActivityCreated(Bundle savedInstanceState) {
+		super.onActivityCreated(savedInstanceState);
+		/* a scan may have been started before a rotation */
+		mScanJob = (ScanJob) BackgroundJob.<ImageSession> find(SCAN_JOB_TAG);
+		/* a cancelled scan stays in the store until it stops */
+		if (mScanJob != null && mScanJob.isCancelled())
+			mScanJob = null;
+		if (mScanJob != null)
+			attachScanJob();
+	}
+
+	@Override
+	public void onDestroyView() {
+		super.onDestroyView();
+		if (mScanJob != null) {
+			mScanJob.detach(mScanListener);
+			mScanJob.getSession().removeListener(mScanListener);
+		}
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		/* the scan is only kept going across configuration changes */
+		if (mScanJob != null && getActivity().isFinishing())
+			mScanJob.cancel();
+	}
+
 	public void onResume() {
 		super.onResume();
 		/*
@@ -296,16 +327,99 @@ public class MmsFragment extends Fragment implements
 			long id) {
 		TextView MmsIDTextView = (TextView) view.findViewById(R.id.thread_id);
 		Integer MmsID = Integer.decode(MmsIDTextView.getText().toString());
-		new ThreadProcessTask().execute(MmsID);
+
+		/*
+		 * only one conversation is scanned at a time. A scan still running,
+		 * even of the same conversation, is cancelled by starting the new
+		 * one under the same tag
+		 */
+		if (mScanJob != null) {
+			mScanJob.detach(mScanListener);
+			mScanJob.getSession().removeListener(mScanListener);
+		}
+		mScanJob = new ScanJob(getActivity().getApplicationContext(), MmsID);
+		mScanJob.start(SCAN_JOB_TAG, TaskScheduler.BACKGROUND);
+		attachScanJob();
 	}
 
-	private void startImageGridActivity(ArrayList<String> bitmapIDs) {
-		if (getActivity() == null)
+	/**
+	 * Shows the progress of {@link MmsFragment#mScanJob}, and listens for its
+	 * images and its result
+	 */
+	private void attachScanJob() {
+		ImageSession session = mScanJob.getSession();
+
+		enableProgressBar();
+		session.addListener(mScanListener);
+		/* images may have been found while no fragment was listening */
+		if (session.size() > 0)
+			mScanListener.onImagesAdded(session.size());
+		mScanJob.attach(mScanListener);
+	}
+
+	/**
+	 * Enables a progress bar, and disables click events in the fragment's list
+	 * view
+	 */
+	private void enableProgressBar() {
+		View rootView = getView();
+		ProgressBar progressBar;
+		ListView listView;
+		TextView textView;
+
+		if (rootView == null)
 			return;
-		Intent intent = new Intent(getActivity(), ImageGridActivity.class);
-		intent.putStringArrayListExtra(ImageGridActivity.BITMAP_INTENT_ID,
-				bitmapIDs);
+		progressBar = (ProgressBar) rootView
+				.findViewById(R.id.sms_mms_query_progress);
+		listView = (ListView) rootView.findViewById(R.id.sms_mms_thread_list);
+		textView = (TextView) rootView
+				.findViewById(R.id.sms_mms_query_progress_text);
+
+		listView.setEnabled(false);
+		listView.setBackgroundColor(getResources().getColor(R.color.dark));
+		progressBar.setProgress(0);
+		progressBar.setMax(100);
+		rootView.findViewById(R.id.sms_mms_progress_container).setVisibility(
+				View.VISIBLE);
+		textView.setText(getResources().getText(R.string.sms_mms_query_images));
+	}
+
+	/**
+	 * Disables a progress bar, and enables click events in the fragment's list
+	 * view
+	 * 
+	 * @param brightenScreen
+	 *            brightens the list view if true, or not if false
+	 */
+	private void disableProgressBar(boolean brightenScreen) {
+		View rootView = getView();
+		ListView listView;
+
+		if (rootView == null)
+			return;
+		listView = (ListView) rootView.findViewById(R.id.sms_mms_thread_list);
+		listView.setEnabled(true);
+		rootView.findViewById(R.id.sms_mms_progress_container).setVisibility(
+				View.GONE);
+		if (brightenScreen == true)
+			listView.setBackgroundColor(getResources().getColor(R.color.white));
+	}
+
+	/**
+	 * Opens the image grid on a session, which the grid then owns
+	 * 
+	 * @return false if there is no activity to open the grid from
+	 */
+	private boolean startImageGridActivity(ImageSession session) {
+		Intent intent;
+
+		if (getActivity() == null)
+			return false;
+		intent = new Intent(getActivity(), ImageGridActivity.class);
+		intent.putExtra(ImageGridActivity.SESSION_INTENT_ID,
+				session.getHandle());
 		startActivity(intent);
+		return true;
 	}
 
 	/**
@@ -369,258 +483,124 @@ public class MmsFragment extends Fragment implements
 	}
 
 	/**
-	 * An AsyncTask that processes SMS/MMS conversations and identifies any
-	 * image parts in the conversation
+	 * Processes an SMS/MMS conversation and identifies any image parts in it.
+	 * Image IDs are published to an {@link ImageSession} as they are found,
+	 * and the image grid is opened as soon as the first batch arrives, while
+	 * the scan continues. The job holds no reference to the fragment, so it
+	 * survives the fragment being recreated
 	 * 
 	 * @author Nicholas M. Iodice
 	 * 
 	 */
-	private class ThreadProcessTask extends
-			AsyncTask<Integer, Integer, ArrayList<String>> {
-		private ProgressBar mProgressBar;
-		private View mProgressContainer;
-		private ListView mListView;
-		private TextView mTextView;
-		private View mRootView;
-
-		private void initViewHandles() {
-			mRootView = getView();
-			if (mRootView == null) {
-				mProgressBar = null;
-				mProgressContainer = null;
-			} else {
-				mProgressBar = (ProgressBar) mRootView
-						.findViewById(R.id.sms_mms_query_progress);
-				mProgressContainer = mRootView
-						.findViewById(R.id.sms_mms_progress_container);
-				mListView = (ListView) mRootView
-						.findViewById(R.id.sms_mms_thread_list);
-				mTextView = (TextView) mRootView
-						.findViewById(R.id.sms_mms_query_progress_text);
-			}
-		}
+	private static class ScanJob extends BackgroundJob<ImageSession> {
+		private final Context mContext;
+		private final long mThreadID;
+		private final ImageSession mSession = ImageSession.create();
+		/* only touched on the main thread */
+		private boolean mGridStarted = false;
 
 		/**
-		 * Enables a progress bar, and disables click events in the fragment's
-		 * list view
+		 * @param context
+		 *            An application context, which outlives any activity
 		 */
-		private void enableProgressBar() {
-			if (mRootView != null) {
-				mRootView.findViewById(R.id.sms_mms_thread_list).setEnabled(
-						false);
-			}
-			if (mProgressBar != null) {
-				mProgressBar.setProgress(0);
-				mProgressBar.setMax(100);
-			}
-			if (mProgressContainer != null)
-				mProgressContainer.setVisibility(View.VISIBLE);
-			if (mListView != null)
-				mListView.setBackgroundColor(getResources().getColor(
-						R.color.dark));
-			if (mTextView != null)
-				mTextView.setText(getResources().getText(
-						R.string.sms_mms_query_convos));
+		ScanJob(Context context, long threadID) {
+			mContext = context;
+			mThreadID = threadID;
 		}
 
-		/**
-		 * Disables a progress bar, and enables click events in the fragment's
-		 * list view
-		 * 
-		 * @param brightenScreen
-		 *            brightens the list view if true, or not if false
-		 */
-		private void disableProgressBar(boolean brightenScreen) {
-			if (mRootView != null)
-				mRootView.findViewById(R.id.sms_mms_thread_list).setEnabled(
-						true);
-			if (mProgressContainer != null)
-				mProgressContainer.setVisibility(View.GONE);
-			if (mListView != null && brightenScreen == true)
-				mListView.setBackgroundColor(getResources().getColor(
-						R.color.white));
-
+		ImageSession getSession() {
+			return mSession;
 		}
 
 		/**
-		 * Updates the progress bar to show that there is start + 100*(curr/max)
-		 * work done
-		 * 
-		 * @param start
-		 *            The base progress for which to add current progress to
-		 * @param curr
-		 *            The current amount of work done (curr <= max)
-		 * @param max
-		 *            The max amount of work to do
+		 * Finds all image part IDs in the thread, using the local image index
+		 * so that only messages received since the last scan are queried
 		 */
-		private void updateProgressBar(int start, int curr, int max) {
-			int currProgress;
-			currProgress = start
-					+ (int) ((float) .5 * (100 * (float) curr / (float) max));
-			publishProgress(currProgress);
-		}
-
 		@Override
-		protected void onPreExecute() {
-			initViewHandles();
-			enableProgressBar();
-			super.onPreExecute();
+		protected ImageSession run() {
+			/* a grid showing a scan that failed must not wait on it */
+			try {
+				ImageIndex.getInstance(mContext).scan(
+						mContext.getContentResolver(), mThreadID, mSession,
+						this);
+			} finally {
+				mSession.complete();
+			}
+			return mSession;
 		}
 
-		/**
-		 * Processes each thread and finds all image part IDs in those threads
-		 */
-		protected ArrayList<String> doInBackground(Integer... threadIDs) {
-			ArrayList<String> bitmapIDs = new ArrayList<String>();
-			ArrayList<String> msgIDs = new ArrayList<String>();
-			/*
-			 * The general sequence of steps is as follows: 1. For each
-			 * threadID, get a list of SMS/MMS message IDs 2. For each SMS/MMS,
-			 * query for MMS parts
-			 */
-			msgIDs = getSmsMmsIDsFromThreadIDs(threadIDs[0]);
-			mRootView.post(new Runnable() {
-				@Override
-				public void run() {
-					mTextView.setText(getResources().getText(
-							R.string.sms_mms_query_images));
-				}
-			});
-			bitmapIDs = getImagePartIDs(msgIDs);
-			return bitmapIDs;
+		@Override
+		protected void onCancelled(ImageSession session) {
+			if (mGridStarted == false)
+				ImageSession.release(mSession.getHandle());
 		}
+	}
 
-		/**
-		 * Given a list of Thread ID values, return every SMS/MMS message in
-		 * those threads
-		 * 
-		 * @param threadIDs
-		 *            A thread ID for which SMS/MMS IDs are requested
-		 * @return A list of all SMS/MMS IDs
-		 */
-		private ArrayList<String> getSmsMmsIDsFromThreadIDs(int threadID) {
-			ArrayList<String> msgIDs = new ArrayList<String>();
-			final String IDCol = "_id";
-			final String[] projection = new String[] { IDCol, "ct_t" };
-			Cursor cursor;
-			String msgID;
-			String msgType;
-			Uri uri;
-
-			/* some variables used to track the overall progress */
-			int startProgress = mProgressBar.getProgress();
-			int messagesProcessed = 0;
-			int totalMessages;
-
-			uri = Uri.parse(SMS_MMS_THREAD_WITH_ID_URI + "/" + threadID);
-			cursor = getActivity().getContentResolver().query(uri, projection,
-					null, null, null);
-			if (cursor.moveToFirst()) {
-				totalMessages = cursor.getCount();
-				do {
-					msgType = cursor.getString(cursor.getColumnIndex("ct_t"));
-					/* this is an MMS */
-					if ("application/vnd.wap.multipart.related".equals(msgType)) {
-						msgID = cursor.getString(cursor.getColumnIndex(IDCol));
-						msgIDs.add(msgID);
-					}
-					messagesProcessed++;
-					updateProgressBar(startProgress, messagesProcessed,
-							totalMessages);
-				} while (cursor.moveToNext());
-				cursor.close();
-			}
-			return msgIDs;
+	/**
+	 * Shows the progress of a {@link ScanJob} and opens the image grid as soon
+	 * as the first images are known
+	 * 
+	 * @author Nicholas M. Iodice
+	 * 
+	 */
+	private class ScanListener implements BackgroundJob.Listener<ImageSession>,
+			ImageSession.Listener {
+		@Override
+		public void onJobProgress(int complete, int total) {
+			View rootView = getView();
+			if (rootView != null)
+				((ProgressBar) rootView.findViewById(R.id.sms_mms_query_progress))
+						.setProgress((int) (100 * (float) complete / (float) total));
 		}
 
-		/**
-		 * Returns a list of all image part IDs from the input list of messages
-		 * 
-		 * @param msgIDs
-		 *            A list of message IDs to query for images
-		 * @return
-		 */
-		private ArrayList<String> getImagePartIDs(ArrayList<String> msgIDs) {
-			ArrayList<String> bitmapIDs = new ArrayList<String>();
-			String[] projection = new String[] { "_id", "ct", };
-			String selection;
-			String partType;
-			String partID;
-			Cursor cursor;
-			Uri uri = Uri.parse(MMS_PART_URI);
-
-			/* some variables used to track the overall progress */
-			int startProgress = mProgressBar.getProgress();
-			int totalMessages = msgIDs.size();
-			int messagesProcessed = 0;
-
-			for (String ID : msgIDs) {
-				if (isCancelled())
-					break;
-
-				selection = "mid = " + ID;
-				/* wrap in try catch, in case the hosting activity has gone away */
-				try {
-					cursor = getActivity().getContentResolver().query(uri,
-							projection, selection, null, null);
-
-				} catch (NullPointerException npe) {
-					return bitmapIDs;
-				}
-				if (cursor.moveToFirst()) {
-					do {
-						/*
-						 * detect cancellation whenever we can in order to break
-						 * early
-						 */
-						if (isCancelled())
-							break;
-
-						partID = cursor.getString(cursor.getColumnIndex("_id"));
-						partType = cursor
-								.getString(cursor.getColumnIndex("ct"));
-						if (partType == null)
-							continue;
-
-						if (partType.equals("image/jpeg")
-								|| partType.equals("image/jpg")
-								|| partType.equals("image/bmp")
-								|| partType.equals("image/gif")
-								|| partType.equals("image/png")) {
-							bitmapIDs.add(partID);
-						}
-
-					} while (cursor.moveToNext());
-				}
-				cursor.close();
-				messagesProcessed++;
-				updateProgressBar(startProgress, messagesProcessed,
-						totalMessages);
+		@Override
+		public void onImagesAdded(int newSize) {
+			if (mScanJob == null || mScanJob.mGridStarted)
+				return;
+			/*
+			 * no grid will ever take the session. Cancelling the scan
+			 * releases it, and stops images being added to it
+			 */
+			if (startImageGridActivity(mScanJob.getSession()) == false) {
+				mScanJob.getSession().removeListener(this);
+				mScanJob.detach(this);
+				mScanJob.cancel();
+				mScanJob = null;
+				return;
 			}
-			return bitmapIDs;
+			mScanJob.mGridStarted = true;
+			disableProgressBar(false);
 		}
 
-		protected void onProgressUpdate(Integer... progress) {
-			int prog = progress[0];
-			if (mProgressBar != null)
-				mProgressBar.setProgress(prog);
+		@Override
+		public void onComplete() {
 		}
 
 		/**
-		 * Passes off any image IDs found in the background query to the
-		 * appropriate handler method. If no IDs are found, a Toast message is
+		 * If no images were found, or the scan failed, a Toast message is
 		 * displayed to the user
 		 */
-		protected void onPostExecute(ArrayList<String> bitmapIDs) {
-			boolean foundMessages = true;
-
-			if (bitmapIDs.size() > 0)
-				startImageGridActivity(bitmapIDs);
-			else {
+		@Override
+		public void onJobFinished(ImageSession session) {
+			ScanJob job = mScanJob;
+
+			mScanJob = null;
+			/* the scan threw, so its session is only known to the job */
+			if (session == null) {
+				job.getSession().removeListener(this);
+				if (job.mGridStarted == false)
+					ImageSession.release(job.getSession().getHandle());
+				Utils.toast(R.string.error_scanning_conversation,
+						getActivity());
+				disableProgressBar(true);
+				return;
+			}
+			session.removeListener(this);
+			if (session.size() == 0) {
+				ImageSession.release(session.getHandle());
 				Utils.toast(R.string.mms_no_images_found, getActivity());
-				foundMessages = false;
+				disableProgressBar(true);
 			}
-			disableProgressBar(!foundMessages);
 		}
 	}
 }
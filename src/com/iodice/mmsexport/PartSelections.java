@@ -0,0 +1,63 @@
+package com.iodice.mmsexport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the selections used to find the image parts of many messages at
+ * once. Each selection covers a chunk of messages with 'mid IN (...)', and
+ * becomes one query to the mms part table, so the number of selections is the
+ * number of queries a scan makes
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class PartSelections {
+	/**
+	 * {@link PartSelections#IMAGE_PARTS} Limits a selection to image parts,
+	 * so that the content provider filters out every other part
+	 */
+	private static final String IMAGE_PARTS = "ct LIKE 'image/%'";
+
+	/**
+	 * Splits message IDs into chunks, in order, and builds a selection for
+	 * each
+	 * 
+	 * @param msgIDs
+	 *            The IDs of the messages to find image parts in
+	 * @param chunkSize
+	 *            The largest number of messages a single selection may cover
+	 * @return One selection per chunk, in the order of msgIDs. The selection
+	 *         at index i covers the messages from i * chunkSize up to, but not
+	 *         including, {@link PartSelections#getChunkEnd(int, int, int)}.
+	 *         Empty if there are no messages
+	 */
+	public static List<String> build(List<String> msgIDs, int chunkSize) {
+		ArrayList<String> selections = new ArrayList<String>();
+		StringBuilder selection;
+		int total = msgIDs.size();
+		int end;
+
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("chunkSize must be positive");
+		for (int start = 0; start < total; start = end) {
+			end = Math.min(start + chunkSize, total);
+			selection = new StringBuilder(IMAGE_PARTS).append(" AND mid IN (");
+			for (int i = start; i < end; i++) {
+				if (i > start)
+					selection.append(',');
+				selection.append(msgIDs.get(i));
+			}
+			selections.add(selection.append(')').toString());
+		}
+		return selections;
+	}
+
+	/**
+	 * @return The number of messages covered by the selections up to and
+	 *         including the one at index chunk, for reporting progress
+	 */
+	public static int getChunkEnd(int chunk, int chunkSize, int total) {
+		return (int) Math.min((long) (chunk + 1) * chunkSize, total);
+	}
+}
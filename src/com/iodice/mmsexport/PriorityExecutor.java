@@ -0,0 +1,245 @@
+package com.iodice.mmsexport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool whose pending jobs are ordered by priority, and can
+ * be cancelled by key before they start. Jobs of equal priority run in the
+ * order they were submitted, or newest first if the executor is LIFO. LIFO
+ * suits work whose most recent requests are the most relevant, such as
+ * decoding thumbnails during a fling.
+ * 
+ * An executor may be told to yield to another one. Before starting a job, it
+ * then waits (for a bounded amount of time) until the other executor has no
+ * work, so speculative work does not compete with work the user is waiting
+ * on
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class PriorityExecutor implements Executor {
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_HIGH = 2;
+
+	/**
+	 * {@link PriorityExecutor#MAX_YIELD_MS} The longest a job waits for the
+	 * executor it yields to, so it can not be starved forever
+	 */
+	private static final long MAX_YIELD_MS = 500;
+
+	private static final AtomicLong sSequence = new AtomicLong();
+
+	private final ThreadPoolExecutor mPool;
+	private final PriorityBlockingQueue<Runnable> mQueue;
+	private final boolean mLifo;
+	private PriorityExecutor mYieldTo = null;
+
+	/* jobs queued or running, guarded by this */
+	private int mPending = 0;
+
+	/**
+	 * Chooses pending jobs to cancel
+	 */
+	public interface KeyFilter {
+		/**
+		 * @param key
+		 *            The key a pending job was submitted with. Never null
+		 * @return true if the job should be cancelled
+		 */
+		boolean matches(Object key);
+	}
+
+	/**
+	 * A unit of work, along with what is needed to order and cancel it
+	 */
+	private class Job implements Runnable, Comparable<Job> {
+		final Runnable mRunnable;
+		final Object mKey;
+		final int mPriority;
+		final long mSequence;
+
+		Job(Runnable runnable, Object key, int priority) {
+			mRunnable = runnable;
+			mKey = key;
+			mPriority = priority;
+			mSequence = sSequence.getAndIncrement();
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (mYieldTo != null)
+					mYieldTo.awaitIdle(MAX_YIELD_MS);
+				mRunnable.run();
+			} finally {
+				jobFinished();
+			}
+		}
+
+		@Override
+		public int compareTo(Job other) {
+			if (mPriority != other.mPriority)
+				return mPriority > other.mPriority ? -1 : 1;
+			if (mSequence == other.mSequence)
+				return 0;
+			return (mSequence < other.mSequence) != mLifo ? -1 : 1;
+		}
+	}
+
+	/**
+	 * @param name
+	 *            Used to name the pool's threads
+	 * @param threads
+	 *            The maximum number of jobs to run at once
+	 * @param threadPriority
+	 *            A priority from {@link android.os.Process}, applied to each
+	 *            of the pool's threads
+	 * @param lifo
+	 *            If true, jobs of equal priority run newest first
+	 */
+	public PriorityExecutor(final String name, int threads,
+			final int threadPriority, boolean lifo) {
+		ThreadFactory factory = new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					public void run() {
+						android.os.Process.setThreadPriority(threadPriority);
+						r.run();
+					}
+				}, name + " #" + mCount.getAndIncrement());
+			}
+		};
+
+		mLifo = lifo;
+		mQueue = new PriorityBlockingQueue<Runnable>();
+		mPool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				mQueue, factory);
+		mPool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Makes jobs on this executor wait until other has no work before they
+	 * start
+	 */
+	public void setYieldTo(PriorityExecutor other) {
+		mYieldTo = other;
+	}
+
+	/**
+	 * Runs a job at normal priority, with no key
+	 */
+	@Override
+	public void execute(Runnable runnable) {
+		execute(runnable, null, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Runs a job
+	 * 
+	 * @param runnable
+	 *            The work to run
+	 * @param key
+	 *            An optional key, which can be passed to
+	 *            {@link PriorityExecutor#cancel(Object)}
+	 * @param priority
+	 *            One of the PRIORITY_ constants
+	 */
+	public void execute(Runnable runnable, Object key, int priority) {
+		synchronized (this) {
+			mPending++;
+		}
+		mPool.execute(new Job(runnable, key, priority));
+	}
+
+	/**
+	 * Returns an {@link Executor} that submits to this one with a key and
+	 * priority. Useful with {@code AsyncTask#executeOnExecutor}
+	 */
+	public Executor withKey(final Object key, final int priority) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable runnable) {
+				PriorityExecutor.this.execute(runnable, key, priority);
+			}
+		};
+	}
+
+	/**
+	 * Removes every pending job submitted with key. Jobs that have already
+	 * started are not affected. If a removed job is a {@link Future} (which
+	 * is the case for AsyncTask work), it is cancelled as well
+	 * 
+	 * @return The number of jobs removed
+	 */
+	public int cancel(final Object key) {
+		if (key == null)
+			return 0;
+		return cancelMatching(new KeyFilter() {
+			@Override
+			public boolean matches(Object other) {
+				return key.equals(other);
+			}
+		});
+	}
+
+	/**
+	 * Removes every pending job whose key is accepted by filter. Jobs without
+	 * a key are never removed
+	 * 
+	 * @see PriorityExecutor#cancel(Object)
+	 * @return The number of jobs removed
+	 */
+	public int cancelMatching(KeyFilter filter) {
+		List<Job> removed = new ArrayList<Job>();
+		Job job;
+
+		for (Runnable r : mQueue.toArray(new Runnable[0])) {
+			job = (Job) r;
+			if (job.mKey != null && filter.matches(job.mKey)
+					&& mQueue.remove(job))
+				removed.add(job);
+		}
+		for (Job j : removed) {
+			if (j.mRunnable instanceof Future<?>)
+				((Future<?>) j.mRunnable).cancel(false);
+			jobFinished();
+		}
+		return removed.size();
+	}
+
+	private synchronized void jobFinished() {
+		mPending--;
+		if (mPending == 0)
+			notifyAll();
+	}
+
+	/**
+	 * Blocks until this executor is idle, or timeoutMs passes
+	 */
+	private synchronized void awaitIdle(long timeoutMs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		long remaining = timeoutMs;
+
+		try {
+			while (mPending > 0 && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,468 @@
+package com.iodice.mmsexport;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip file one entry at a time, so that a long export can be picked
+ * up where it left off after being cancelled or killed.
+ * 
+ * Each entry's local header and data are written straight to the file, and
+ * only then is the entry recorded in a small journal kept next to the
+ * archive. The central directory is written once, by
+ * {@link ResumableZipWriter#finish()}, after which the journal is deleted.
+ * Opening a writer on an archive that has a journal with the same key keeps
+ * every entry the journal vouches for, truncates anything written after the
+ * last of them, and continues from there. A missing journal, or one written
+ * for a different export, starts the archive over.
+ * 
+ * Entries are limited to what a plain (not zip64) archive can hold: 65535
+ * entries and 4 GB in all
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ResumableZipWriter implements Closeable {
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	/* where the crc and sizes sit in a local header */
+	private static final int LOCAL_HEADER_CRC_OFFSET = 14;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_SIZE = 22;
+	private static final int VERSION = 20;
+	/* entry names are UTF-8 */
+	private static final int FLAG_UTF8 = 0x0800;
+	private static final long MAX_OFFSET = 0xFFFFFFFFL;
+	private static final int MAX_ENTRIES = 0xFFFF;
+
+	private static final String JOURNAL_SUFFIX = ".journal";
+	private static final String JOURNAL_MAGIC = "zipjournal 1";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * An entry that is completely on disk
+	 */
+	private static class Entry {
+		byte[] name;
+		int method;
+		int dosTime;
+		long crc;
+		long compressedSize;
+		long size;
+		long offset;
+
+		long getEnd() {
+			return offset + LOCAL_HEADER_SIZE + name.length + compressedSize;
+		}
+	}
+
+	private final File mJournalFile;
+	private final RandomAccessFile mZip;
+	private final Writer mJournal;
+	private final ArrayList<Entry> mEntries;
+	private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION,
+			true);
+	private final byte[] mDeflateBuffer = new byte[8192];
+	private long mOffset;
+	private boolean mClosed = false;
+
+	/**
+	 * Opens an archive, resuming it if its journal was written with the same
+	 * key
+	 * 
+	 * @param zipFile
+	 *            The archive to write. The journal is kept alongside it
+	 * @param key
+	 *            Identifies the export, so that a journal left by a different
+	 *            one is not resumed. Must not contain a line break
+	 * @throws IOException
+	 *             If the archive or its journal can not be opened
+	 */
+	public ResumableZipWriter(File zipFile, String key) throws IOException {
+		mJournalFile = new File(zipFile.getPath() + JOURNAL_SUFFIX);
+		mEntries = readJournal(mJournalFile, key, zipFile.length());
+		mOffset = mEntries.isEmpty() ? 0 : mEntries.get(mEntries.size() - 1)
+				.getEnd();
+
+		mZip = new RandomAccessFile(zipFile, "rw");
+		try {
+			/* drop whatever was written after the last good entry */
+			mZip.setLength(mOffset);
+			mZip.seek(mOffset);
+
+			/* the journal is rewritten, in case its last line was cut short */
+			mJournal = new FileWriter(mJournalFile, false);
+			mJournal.write(JOURNAL_MAGIC + "\n" + key + "\n");
+			for (Entry entry : mEntries)
+				writeJournalLine(entry);
+			mJournal.flush();
+		} catch (IOException e) {
+			mZip.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes an archive along with its journal, if it has one
+	 * 
+	 * @return true if the archive was deleted
+	 */
+	public static boolean delete(File zipFile) {
+		new File(zipFile.getPath() + JOURNAL_SUFFIX).delete();
+		return zipFile.delete();
+	}
+
+	/**
+	 * @return The number of entries in the archive, including any kept from
+	 *         an earlier attempt. The next entry written gets this index
+	 */
+	public int getEntryCount() {
+		return mEntries.size();
+	}
+
+	/**
+	 * @return The CRC-32 of an entry's uncompressed data
+	 */
+	public long getEntryCrc(int index) {
+		return mEntries.get(index).crc;
+	}
+
+	/**
+	 * Appends an entry and records it in the journal
+	 * 
+	 * @param name
+	 *            The entry's file name
+	 * @param data
+	 *            The entry's uncompressed contents
+	 * @param method
+	 *            {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+	 * @throws IOException
+	 *             If writing fails, or the archive would be too large
+	 */
+	public void writeEntry(String name, byte[] data, int method)
+			throws IOException {
+		Entry entry = newEntry(name, method);
+		CRC32 crc = new CRC32();
+		byte[] stored;
+
+		crc.update(data);
+		entry.crc = crc.getValue();
+		entry.size = data.length;
+		stored = method == ZipEntry.DEFLATED ? deflate(data) : data;
+		entry.compressedSize = stored.length;
+		if (entry.getEnd() > MAX_OFFSET)
+			throw new IOException("Archive is too large for a zip file");
+
+		mZip.write(getLocalHeader(entry));
+		mZip.write(stored);
+		addEntry(entry);
+	}
+
+	/**
+	 * Appends an entry whose contents are read from a stream, without holding
+	 * them in memory, and records it in the journal. The local header is
+	 * written first and filled in once the contents have been copied, so
+	 * {@link ZipEntry#STORED} entries do not need their size and crc up front
+	 * 
+	 * @param name
+	 *            The entry's file name
+	 * @param data
+	 *            The entry's uncompressed contents, read until it ends. It is
+	 *            not closed
+	 * @param method
+	 *            {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+	 * @throws IOException
+	 *             If reading or writing fails, or the archive would be too
+	 *             large
+	 */
+	public void writeEntry(String name, InputStream data, int method)
+			throws IOException {
+		Entry entry = newEntry(name, method);
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[mDeflateBuffer.length];
+		long limit = MAX_OFFSET - LOCAL_HEADER_SIZE - entry.name.length
+				- entry.offset;
+		ByteBuffer sizes;
+		int read;
+
+		mZip.write(getLocalHeader(entry));
+		if (method == ZipEntry.DEFLATED)
+			mDeflater.reset();
+		while ((read = data.read(buffer)) != -1) {
+			crc.update(buffer, 0, read);
+			entry.size += read;
+			if (method == ZipEntry.DEFLATED) {
+				mDeflater.setInput(buffer, 0, read);
+				while (mDeflater.needsInput() == false)
+					entry.compressedSize += writeDeflated();
+			} else {
+				mZip.write(buffer, 0, read);
+				entry.compressedSize += read;
+			}
+			if (entry.compressedSize > limit || entry.size > MAX_OFFSET)
+				throw new IOException("Archive is too large for a zip file");
+		}
+		if (method == ZipEntry.DEFLATED) {
+			mDeflater.finish();
+			while (mDeflater.finished() == false)
+				entry.compressedSize += writeDeflated();
+			if (entry.compressedSize > limit)
+				throw new IOException("Archive is too large for a zip file");
+		}
+		entry.crc = crc.getValue();
+
+		sizes = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+		sizes.putInt((int) entry.crc);
+		sizes.putInt((int) entry.compressedSize);
+		sizes.putInt((int) entry.size);
+		mZip.seek(entry.offset + LOCAL_HEADER_CRC_OFFSET);
+		mZip.write(sizes.array());
+		mZip.seek(entry.getEnd());
+		addEntry(entry);
+	}
+
+	/**
+	 * Writes the central directory, closes the archive, and deletes the
+	 * journal. The archive is complete once this returns
+	 * 
+	 * @throws IOException
+	 *             If writing fails
+	 */
+	public void finish() throws IOException {
+		ByteBuffer directory = ByteBuffer.allocate(
+				getDirectorySize() + END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		for (Entry entry : mEntries) {
+			directory.putInt(CENTRAL_HEADER_SIGNATURE);
+			directory.putShort((short) VERSION);
+			directory.putShort((short) VERSION);
+			directory.putShort((short) FLAG_UTF8);
+			directory.putShort((short) entry.method);
+			directory.putInt(entry.dosTime);
+			directory.putInt((int) entry.crc);
+			directory.putInt((int) entry.compressedSize);
+			directory.putInt((int) entry.size);
+			directory.putShort((short) entry.name.length);
+			/* extra field, comment, disk number, internal attributes */
+			directory.putShort((short) 0);
+			directory.putShort((short) 0);
+			directory.putShort((short) 0);
+			directory.putShort((short) 0);
+			/* external attributes */
+			directory.putInt(0);
+			directory.putInt((int) entry.offset);
+			directory.put(entry.name);
+		}
+
+		directory.putInt(END_SIGNATURE);
+		/* this disk, and the disk the directory starts on */
+		directory.putShort((short) 0);
+		directory.putShort((short) 0);
+		directory.putShort((short) mEntries.size());
+		directory.putShort((short) mEntries.size());
+		directory.putInt(getDirectorySize());
+		directory.putInt((int) mOffset);
+		/* comment length */
+		directory.putShort((short) 0);
+
+		if (mOffset + directory.capacity() > MAX_OFFSET)
+			throw new IOException("Archive is too large for a zip file");
+		mZip.write(directory.array());
+		mZip.setLength(mOffset + directory.capacity());
+		close();
+		mJournalFile.delete();
+	}
+
+	/**
+	 * Closes the archive without finishing it. The journal is kept, so a
+	 * later writer with the same key can resume it
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mClosed)
+			return;
+		mClosed = true;
+		mDeflater.end();
+		try {
+			mJournal.close();
+		} finally {
+			mZip.close();
+		}
+	}
+
+	/**
+	 * Starts an entry right after the last complete one, writing over
+	 * anything an entry that failed part way through left behind
+	 * 
+	 * @throws IOException
+	 *             If the archive already holds as many entries as it can
+	 */
+	private Entry newEntry(String name, int method) throws IOException {
+		Entry entry = new Entry();
+
+		if (mEntries.size() >= MAX_ENTRIES)
+			throw new IOException("Too many entries for a zip file");
+		mZip.seek(mOffset);
+		entry.name = name.getBytes(UTF8);
+		entry.method = method;
+		entry.dosTime = getDosTime();
+		entry.offset = mOffset;
+		return entry;
+	}
+
+	private static byte[] getLocalHeader(Entry entry) {
+		ByteBuffer header = ByteBuffer.allocate(
+				LOCAL_HEADER_SIZE + entry.name.length).order(
+				ByteOrder.LITTLE_ENDIAN);
+
+		header.putInt(LOCAL_HEADER_SIGNATURE);
+		header.putShort((short) VERSION);
+		header.putShort((short) FLAG_UTF8);
+		header.putShort((short) entry.method);
+		header.putInt(entry.dosTime);
+		header.putInt((int) entry.crc);
+		header.putInt((int) entry.compressedSize);
+		header.putInt((int) entry.size);
+		header.putShort((short) entry.name.length);
+		header.putShort((short) 0);
+		header.put(entry.name);
+		return header.array();
+	}
+
+	/**
+	 * Records an entry whose local header and data are on disk
+	 */
+	private void addEntry(Entry entry) throws IOException {
+		mOffset = entry.getEnd();
+		/* only vouch for the entry once it is on disk */
+		mEntries.add(entry);
+		writeJournalLine(entry);
+		mJournal.flush();
+	}
+
+	/**
+	 * Writes whatever the deflater has ready straight to the archive
+	 * 
+	 * @return The number of bytes written
+	 */
+	private int writeDeflated() throws IOException {
+		int deflated = mDeflater.deflate(mDeflateBuffer);
+		mZip.write(mDeflateBuffer, 0, deflated);
+		return deflated;
+	}
+
+	private int getDirectorySize() {
+		int size = 0;
+		for (Entry entry : mEntries)
+			size += CENTRAL_HEADER_SIZE + entry.name.length;
+		return size;
+	}
+
+	private byte[] deflate(byte[] data) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+
+		mDeflater.reset();
+		mDeflater.setInput(data);
+		mDeflater.finish();
+		while (mDeflater.finished() == false)
+			out.write(mDeflateBuffer, 0, mDeflater.deflate(mDeflateBuffer));
+		return out.toByteArray();
+	}
+
+	private void writeJournalLine(Entry entry) throws IOException {
+		mJournal.write(new String(entry.name, UTF8) + '\t' + entry.method
+				+ '\t' + entry.dosTime + '\t' + entry.crc + '\t'
+				+ entry.compressedSize + '\t' + entry.size + '\t'
+				+ entry.offset + '\n');
+	}
+
+	/**
+	 * Reads back the entries a journal vouches for. Reading stops at the
+	 * first line that is cut short or does not follow on from the entry
+	 * before it, and at the first entry that runs past the end of the archive
+	 * 
+	 * @return The entries, or an empty list if there is no journal, or it was
+	 *         written with a different key
+	 */
+	private static ArrayList<Entry> readJournal(File journalFile, String key,
+			long zipLength) {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		BufferedReader reader;
+		String[] fields;
+		String line;
+		Entry entry;
+		long end = 0;
+
+		if (journalFile.exists() == false)
+			return entries;
+		try {
+			reader = new BufferedReader(new FileReader(journalFile));
+		} catch (IOException e) {
+			return entries;
+		}
+
+		try {
+			if (JOURNAL_MAGIC.equals(reader.readLine()) == false
+					|| key.equals(reader.readLine()) == false)
+				return entries;
+			while ((line = reader.readLine()) != null) {
+				fields = line.split("\t");
+				if (fields.length != 7)
+					break;
+				entry = new Entry();
+				entry.name = fields[0].getBytes(UTF8);
+				entry.method = Integer.parseInt(fields[1]);
+				entry.dosTime = Integer.parseInt(fields[2]);
+				entry.crc = Long.parseLong(fields[3]);
+				entry.compressedSize = Long.parseLong(fields[4]);
+				entry.size = Long.parseLong(fields[5]);
+				entry.offset = Long.parseLong(fields[6]);
+				if (entry.offset != end || entry.getEnd() > zipLength)
+					break;
+				entries.add(entry);
+				end = entry.getEnd();
+			}
+		} catch (IOException e) {
+			/* keep what was read before the error */
+		} catch (NumberFormatException e) {
+			/* a line that was cut short */
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return The current time, in the MS-DOS format zip headers use
+	 */
+	private static int getDosTime() {
+		Calendar now = Calendar.getInstance();
+		return (now.get(Calendar.YEAR) - 1980) << 25
+				| (now.get(Calendar.MONTH) + 1) << 21
+				| now.get(Calendar.DAY_OF_MONTH) << 16
+				| now.get(Calendar.HOUR_OF_DAY) << 11
+				| now.get(Calendar.MINUTE) << 5
+				| now.get(Calendar.SECOND) >> 1;
+	}
+}
@@ -0,0 +1,70 @@
+package com.iodice.mmsexport;
+
+import android.os.Process;
+
+/**
+ * The app's background executors. Each kind of work gets its own bounded
+ * pool, so a long running export can not hold up thumbnails, and thumbnails
+ * for cells the user is looking at are not stuck behind speculative prefetch
+ * work. This replaces the single serial executor that {@code AsyncTask}
+ * uses by default
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class TaskScheduler {
+	/**
+	 * {@link TaskScheduler#THUMBNAIL} Decodes thumbnails for visible grid
+	 * cells. Newest requests are served first, since those are the cells the
+	 * user has stopped on
+	 */
+	public static final PriorityExecutor THUMBNAIL = new PriorityExecutor(
+			"thumbnail", 2, Process.THREAD_PRIORITY_BACKGROUND
+					+ Process.THREAD_PRIORITY_MORE_FAVORABLE, true);
+
+	/**
+	 * {@link TaskScheduler#PREFETCH} Decodes thumbnails the user has not
+	 * scrolled to yet. Yields to {@link TaskScheduler#THUMBNAIL}
+	 */
+	public static final PriorityExecutor PREFETCH = new PriorityExecutor(
+			"prefetch", 1, Process.THREAD_PRIORITY_LOWEST, false);
+
+	/**
+	 * {@link TaskScheduler#FULL_SCREEN} Decodes images for the full screen
+	 * viewer
+	 */
+	public static final PriorityExecutor FULL_SCREEN = new PriorityExecutor(
+			"full screen", 1, Process.THREAD_PRIORITY_BACKGROUND
+					+ Process.THREAD_PRIORITY_MORE_FAVORABLE, false);
+
+	/**
+	 * {@link TaskScheduler#BACKGROUND} Runs conversation scans and drives
+	 * exports
+	 */
+	public static final PriorityExecutor BACKGROUND = new PriorityExecutor(
+			"background", 2, Process.THREAD_PRIORITY_BACKGROUND, false);
+
+	/**
+	 * {@link TaskScheduler#EXPORT_JOBS} Runs the exports queued by
+	 * {@link ExportService}, one at a time and in the order they were queued
+	 */
+	public static final PriorityExecutor EXPORT_JOBS = new PriorityExecutor(
+			"export jobs", 1, Process.THREAD_PRIORITY_BACKGROUND, false);
+
+	/**
+	 * {@link TaskScheduler#EXPORT} Reads and transcodes images for an
+	 * {@link ExportPipeline}. Kept apart from
+	 * {@link TaskScheduler#BACKGROUND}, which runs the tasks that wait on
+	 * these workers
+	 */
+	public static final PriorityExecutor EXPORT = new PriorityExecutor(
+			"export", Runtime.getRuntime().availableProcessors(),
+			Process.THREAD_PRIORITY_BACKGROUND, false);
+
+	static {
+		PREFETCH.setYieldTo(THUMBNAIL);
+	}
+
+	private TaskScheduler() {
+	}
+}
@@ -0,0 +1,235 @@
+package com.iodice.mmsexport;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.LruCache;
+
+/**
+ * The grid's thumbnails, cached in memory and on disk by image ID and size
+ * bucket. Thumbnail sizes depend on the number of grid columns, which changes
+ * with orientation, so sizes are rounded up to one of a few buckets. A
+ * thumbnail cached for a larger bucket is scaled down to serve a smaller one,
+ * which is much cheaper than decoding the image again.
+ * 
+ * A thumbnail evicted from memory goes to the {@link BitmapPool}, and may be
+ * decoded into as soon as nobody has retained it. Any code that reads a
+ * cached bitmap's pixels off the main thread, or holds on to it, must get it
+ * through {@link ThumbnailCache#acquire(String, int)}
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ThumbnailCache {
+	/**
+	 * {@link ThumbnailCache#SIZE_BUCKETS} Thumbnail sizes, in pixels. Each is
+	 * 1.33 to 1.5 times the one before it, so a thumbnail scaled down by one
+	 * bucket still looks sharp, and the portrait and landscape column counts
+	 * of a device usually fall in neighboring buckets
+	 */
+	private static final int[] SIZE_BUCKETS = { 128, 192, 256, 384, 512, 768 };
+
+	private static ThumbnailCache sInstance = null;
+
+	/**
+	 * {@link ThumbnailCache#mMemoryCache} Thumbnails keyed by
+	 * {@link ThumbnailCache#getKey(String, int)}. Sized to an eighth of the
+	 * heap
+	 */
+	private final LruCache<String, Bitmap> mMemoryCache;
+
+	private ThumbnailCache() {
+		/*
+		 * Get max available VM memory, exceeding this amount will throw an
+		 * OutOfMemory exception. Stored in kilobytes as LruCache takes an int
+		 * in its constructor.
+		 */
+		final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
+		final int cacheSize = maxMemory / 8;
+
+		mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				/*
+				 * The cache size will be measured in kilobytes rather than
+				 * number of items.
+				 */
+				return bitmap.getByteCount() / 1024;
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, String key,
+					Bitmap oldValue, Bitmap newValue) {
+				/* reuse the memory once no view is displaying it */
+				BitmapPool.getInstance().discard(oldValue);
+			}
+		};
+	}
+
+	/**
+	 * Returns the process wide cache. The cache is static so that it persists
+	 * whenever the activity is destroyed
+	 */
+	public static synchronized ThumbnailCache getInstance() {
+		if (sInstance == null)
+			sInstance = new ThumbnailCache();
+		return sInstance;
+	}
+
+	/**
+	 * Rounds a thumbnail size up to the nearest bucket
+	 * 
+	 * @param size
+	 *            A size from
+	 *            {@link ImageUtils#getThumbnailSize(Context, int)}
+	 * @return The bucket size, which is the size thumbnails are decoded at
+	 */
+	public static int getBucket(int size) {
+		for (int bucket : SIZE_BUCKETS) {
+			if (size <= bucket)
+				return bucket;
+		}
+		return size;
+	}
+
+	/**
+	 * @return The key a thumbnail is cached and loaded under
+	 */
+	public static String getKey(String imgID, int bucket) {
+		return imgID + "@" + bucket;
+	}
+
+	/**
+	 * Returns a thumbnail from memory, only if it is cached at exactly this
+	 * bucket. Cheap enough for the main thread
+	 */
+	public Bitmap get(String imgID, int bucket) {
+		return mMemoryCache.get(getKey(imgID, bucket));
+	}
+
+	/**
+	 * Returns a thumbnail from memory, only if it is cached at exactly this
+	 * bucket, and retains it in the {@link BitmapPool}. It can not be evicted
+	 * into the pool between being looked up and being retained, so it can not
+	 * be decoded into until the caller releases it. Cheap enough for the main
+	 * thread
+	 * 
+	 * @return The thumbnail, which the caller must
+	 *         {@link BitmapPool#release(Bitmap)}, or null if it is not in
+	 *         memory
+	 */
+	public Bitmap acquire(String imgID, int bucket) {
+		BitmapPool pool = BitmapPool.getInstance();
+		Bitmap bitmap;
+
+		/* evictions hand bitmaps to the pool under this same lock */
+		synchronized (pool) {
+			bitmap = get(imgID, bucket);
+			pool.retain(bitmap);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Returns the largest thumbnail of an image that is in memory, at any
+	 * bucket, retained as by {@link ThumbnailCache#acquire(String, int)}.
+	 * Cheap enough for the main thread
+	 * 
+	 * @return The thumbnail, which the caller must
+	 *         {@link BitmapPool#release(Bitmap)}, or null if none is in memory
+	 */
+	public Bitmap acquireLargest(String imgID) {
+		Bitmap bitmap;
+		for (int i = SIZE_BUCKETS.length - 1; i >= 0; i--) {
+			bitmap = acquire(imgID, SIZE_BUCKETS[i]);
+			if (bitmap != null)
+				return bitmap;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a thumbnail to the memory cache, unless one is already there
+	 */
+	public void put(String imgID, int bucket, Bitmap bitmap) {
+		String key;
+		if (imgID == null || bitmap == null)
+			return;
+		key = getKey(imgID, bucket);
+		if (mMemoryCache.get(key) == null)
+			mMemoryCache.put(key, bitmap);
+	}
+
+	/**
+	 * Looks for a thumbnail that can serve a bucket without decoding the
+	 * original image. Tries disk at the exact bucket, then memory and disk at
+	 * larger buckets, scaling down what is found. A scaled down thumbnail is
+	 * written to the disk cache. The thumbnail returned is always a new
+	 * bitmap, never one that is in the memory cache, so it can not be pooled
+	 * while the caller uses it. Should not be called on the main thread
+	 * 
+	 * @param context
+	 *            Used to open the disk cache
+	 * @return The thumbnail, or null if it has to be decoded
+	 */
+	public Bitmap load(Context context, String imgID, int bucket) {
+		DiskThumbnailCache diskCache = DiskThumbnailCache.getInstance(context);
+		BitmapPool pool = BitmapPool.getInstance();
+		/* thumbnails are stored on disk as JPEGs */
+		Bitmap.Config config = ThumbnailFormat.getConfig(context, "image/jpeg");
+		Bitmap bitmap = diskCache.get(getKey(imgID, bucket), config, bucket);
+		Bitmap scaled;
+
+		if (bitmap != null)
+			return bitmap;
+
+		for (int larger : SIZE_BUCKETS) {
+			if (larger <= bucket)
+				continue;
+			bitmap = acquire(imgID, larger);
+			if (bitmap != null) {
+				/* read while retained, so it is not decoded into meanwhile */
+				scaled = scaleToBucket(bitmap, bucket);
+				if (scaled == bitmap)
+					scaled = pool.copyRegion(bitmap, new Rect(0, 0,
+							bitmap.getWidth(), bitmap.getHeight()),
+							bitmap.getWidth(), bitmap.getHeight());
+				pool.release(bitmap);
+			} else {
+				bitmap = diskCache.get(getKey(imgID, larger), config, larger);
+				if (bitmap == null)
+					continue;
+				scaled = scaleToBucket(bitmap, bucket);
+				/* nobody else has seen the larger one */
+				if (scaled != bitmap)
+					pool.discard(bitmap);
+			}
+			diskCache.put(getKey(imgID, bucket), scaled);
+			return scaled;
+		}
+		return null;
+	}
+
+	/**
+	 * Writes a decoded thumbnail to the disk cache. Should not be called on
+	 * the main thread
+	 */
+	public void putToDisk(Context context, String imgID, int bucket,
+			Bitmap bitmap) {
+		DiskThumbnailCache.getInstance(context).put(getKey(imgID, bucket),
+				bitmap);
+	}
+
+	/**
+	 * Scales a square thumbnail down to a bucket's size, into a mutable bitmap
+	 * that can be pooled later. Thumbnails that are already small enough are
+	 * returned as is
+	 */
+	public static Bitmap scaleToBucket(Bitmap bitmap, int bucket) {
+		if (bitmap == null || bitmap.getWidth() <= bucket)
+			return bitmap;
+		return BitmapPool.getInstance().copyRegion(bitmap,
+				new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()), bucket,
+				bucket);
+	}
+}
@@ -0,0 +1,104 @@
+package com.iodice.mmsexport;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Chooses the pixel format thumbnails are decoded in. JPEGs have no alpha
+ * channel, so on devices short on memory they are decoded as RGB_565, which
+ * takes half the memory of ARGB_8888 and lets the memory cache hold about
+ * twice as many thumbnails. Formats that may be transparent, such as PNG and
+ * GIF, always use ARGB_8888.
+ * 
+ * The mode is picked from the device's memory class the first time it is
+ * needed, and can be overridden with {@link ThumbnailFormat#setMode(int)}
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ThumbnailFormat {
+	/**
+	 * {@link ThumbnailFormat#MODE_AUTO} Choose based on the device's memory
+	 */
+	public static final int MODE_AUTO = 0;
+
+	/**
+	 * {@link ThumbnailFormat#MODE_QUALITY} Always decode ARGB_8888
+	 */
+	public static final int MODE_QUALITY = 1;
+
+	/**
+	 * {@link ThumbnailFormat#MODE_LOW_MEMORY} Decode opaque images as RGB_565
+	 */
+	public static final int MODE_LOW_MEMORY = 2;
+
+	/**
+	 * {@link ThumbnailFormat#LOW_MEMORY_CLASS_MB} Devices whose per-app heap
+	 * limit is at or below this are treated as short on memory
+	 */
+	private static final int LOW_MEMORY_CLASS_MB = 96;
+
+	private static int sMode = MODE_AUTO;
+
+	/* the mode MODE_AUTO resolved to, or MODE_AUTO if not resolved yet */
+	private static int sAutoMode = MODE_AUTO;
+
+	private ThumbnailFormat() {
+	}
+
+	/**
+	 * Overrides the automatically chosen mode. Thumbnails that are already
+	 * cached keep the format they were decoded in
+	 * 
+	 * @param mode
+	 *            One of the MODE_ constants
+	 */
+	public static synchronized void setMode(int mode) {
+		sMode = mode;
+	}
+
+	/**
+	 * Returns the format to decode a thumbnail in
+	 * 
+	 * @param context
+	 *            Used to look up the device's memory class
+	 * @param mimeType
+	 *            The image's type, as found by a bounds decode's outMimeType.
+	 *            May be null if it is not known
+	 */
+	public static Bitmap.Config getConfig(Context context, String mimeType) {
+		if (getMode(context) == MODE_LOW_MEMORY && isOpaque(mimeType))
+			return Bitmap.Config.RGB_565;
+		return Bitmap.Config.ARGB_8888;
+	}
+
+	private static synchronized int getMode(Context context) {
+		if (sMode != MODE_AUTO)
+			return sMode;
+		if (sAutoMode == MODE_AUTO)
+			sAutoMode = isLowMemoryDevice(context) ? MODE_LOW_MEMORY
+					: MODE_QUALITY;
+		return sAutoMode;
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static boolean isLowMemoryDevice(Context context) {
+		ActivityManager am = (ActivityManager) context
+				.getSystemService(Context.ACTIVITY_SERVICE);
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+				&& am.isLowRamDevice())
+			return true;
+		return am.getMemoryClass() <= LOW_MEMORY_CLASS_MB;
+	}
+
+	/**
+	 * @return true if images of this type never have an alpha channel
+	 */
+	private static boolean isOpaque(String mimeType) {
+		return "image/jpeg".equals(mimeType) || "image/jpg".equals(mimeType);
+	}
+}
@@ -0,0 +1,453 @@
+package com.iodice.mmsexport;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.util.LruCache;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.widget.ImageView;
+
+/**
+ * An image view that can be pinch zoomed and panned. It shows a sampled,
+ * screen sized version of an image, and once the user zooms in past what that
+ * version can show sharply, it decodes the visible part of the original in
+ * tiles using a {@link BitmapRegionDecoder}. Only tiles that are on screen are
+ * decoded, at the resolution the current zoom needs, and recently used tiles
+ * are kept in a small cache, so the cost of zooming does not depend on the
+ * size of the original image
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class TiledImageView extends ImageView {
+	/**
+	 * {@link TiledImageView#TILE_SIZE} The size, in decoded pixels, of each
+	 * tile
+	 */
+	private static final int TILE_SIZE = 512;
+
+	/**
+	 * {@link TiledImageView#MAX_SCREEN_PX_PER_SOURCE_PX} How far the user can
+	 * zoom in, measured in screen pixels per original image pixel
+	 */
+	private static final float MAX_SCREEN_PX_PER_SOURCE_PX = 3f;
+
+	/**
+	 * {@link TiledImageView#DOUBLE_TAP_ZOOM} How far a double tap zooms in,
+	 * relative to the fitted image
+	 */
+	private static final float DOUBLE_TAP_ZOOM = 2.5f;
+
+	/* the sampled image is drawn by ImageView. these describe the original */
+	private BitmapRegionDecoder mDecoder = null;
+	private int mSourceWidth = 0;
+	private int mSourceHeight = 0;
+	private Bitmap mBase = null;
+
+	/* maps the original image into the view when it is fit to the view */
+	private final Matrix mFitMatrix = new Matrix();
+	private float mFitScale = 1f;
+
+	/* the user's zoom and pan, applied on top of mFitMatrix */
+	private final Matrix mUserMatrix = new Matrix();
+
+	/* mFitMatrix followed by mUserMatrix */
+	private final Matrix mSourceToView = new Matrix();
+
+	/* decoded tiles, keyed by getTileKey. only used on the main thread */
+	private final LruCache<String, Bitmap> mTiles;
+	private final Set<String> mPendingTiles = new HashSet<String>();
+
+	/* changes whenever the image does, so late tiles can be dropped */
+	private int mGeneration = 0;
+
+	private final ScaleGestureDetector mScaleDetector;
+	private final GestureDetector mGestureDetector;
+
+	public TiledImageView(Context context) {
+		this(context, null);
+	}
+
+	public TiledImageView(Context context, AttributeSet attrs) {
+		this(context, attrs, 0);
+	}
+
+	public TiledImageView(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+		/* in kilobytes, as with the thumbnail cache */
+		int cacheSize = (int) (Runtime.getRuntime().maxMemory() / 1024 / 16);
+
+		setScaleType(ScaleType.MATRIX);
+		mTiles = new LruCache<String, Bitmap>(cacheSize) {
+			@Override
+			protected int sizeOf(String key, Bitmap tile) {
+				return tile.getByteCount() / 1024;
+			}
+		};
+		mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+		mGestureDetector = new GestureDetector(context, new PanListener());
+	}
+
+	/**
+	 * Shows a new image, fit to the view, and releases the previous image's
+	 * decoder
+	 * 
+	 * @param base
+	 *            A sampled version of the image, shown until the user zooms
+	 *            in far enough to need tiles
+	 * @param decoder
+	 *            A decoder for the original image, which this view takes
+	 *            ownership of. May be null, in which case the view only zooms
+	 *            the sampled image
+	 */
+	public void setImage(Bitmap base, BitmapRegionDecoder decoder) {
+		release();
+		mBase = base;
+		mDecoder = decoder;
+		if (decoder != null) {
+			mSourceWidth = decoder.getWidth();
+			mSourceHeight = decoder.getHeight();
+		} else if (base != null) {
+			mSourceWidth = base.getWidth();
+			mSourceHeight = base.getHeight();
+		}
+		mUserMatrix.reset();
+		super.setImageBitmap(base);
+		updateFitMatrix();
+	}
+
+	/**
+	 * Adds a decoder for the original of the image already shown, so the user
+	 * can zoom into it. Any zoom the user has already applied is kept. Does
+	 * nothing if the view already has a decoder
+	 * 
+	 * @param decoder
+	 *            A decoder for the original image, which this view takes
+	 *            ownership of
+	 */
+	public void setDecoder(BitmapRegionDecoder decoder) {
+		if (decoder == null)
+			return;
+		if (mBase == null || mDecoder != null) {
+			recycleLater(decoder);
+			return;
+		}
+		mDecoder = decoder;
+		mSourceWidth = decoder.getWidth();
+		mSourceHeight = decoder.getHeight();
+		updateFitMatrix();
+	}
+
+	/**
+	 * Drops every tile and queued tile decode, and recycles the decoder. Call
+	 * once the view will no longer be shown
+	 */
+	public void release() {
+		final BitmapRegionDecoder decoder = mDecoder;
+
+		mGeneration++;
+		cancelQueuedTiles(null);
+		mPendingTiles.clear();
+		mTiles.evictAll();
+		mDecoder = null;
+		if (decoder != null)
+			recycleLater(decoder);
+	}
+
+	/**
+	 * Recycles a decoder once any tile it is decoding right now is done
+	 */
+	private static void recycleLater(final BitmapRegionDecoder decoder) {
+		TaskScheduler.FULL_SCREEN.execute(new Runnable() {
+			public void run() {
+				synchronized (decoder) {
+					decoder.recycle();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return true if the user has zoomed in
+	 */
+	public boolean isZoomed() {
+		return getUserScale() > 1.01f;
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		if (mBase == null)
+			return false;
+		mScaleDetector.onTouchEvent(event);
+		mGestureDetector.onTouchEvent(event);
+		return true;
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		updateFitMatrix();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		if (mDecoder != null && isZoomed())
+			drawTiles(canvas);
+	}
+
+	private float getUserScale() {
+		float[] values = new float[9];
+		mUserMatrix.getValues(values);
+		return values[Matrix.MSCALE_X];
+	}
+
+	/**
+	 * Recomputes how the original image fits the view
+	 */
+	private void updateFitMatrix() {
+		float dx;
+		float dy;
+
+		if (mSourceWidth <= 0 || mSourceHeight <= 0 || getWidth() <= 0
+				|| getHeight() <= 0)
+			return;
+		mFitScale = Math.min(getWidth() / (float) mSourceWidth, getHeight()
+				/ (float) mSourceHeight);
+		dx = (getWidth() - mSourceWidth * mFitScale) / 2;
+		dy = (getHeight() - mSourceHeight * mFitScale) / 2;
+		mFitMatrix.setScale(mFitScale, mFitScale);
+		mFitMatrix.postTranslate(dx, dy);
+		applyMatrix();
+	}
+
+	/**
+	 * Keeps the zoom in range and the image on screen, then redraws
+	 */
+	private void applyMatrix() {
+		float maxScale = Math.max(1f, MAX_SCREEN_PX_PER_SOURCE_PX / mFitScale);
+		float scale = getUserScale();
+		RectF bounds = new RectF(0, 0, mSourceWidth, mSourceHeight);
+		Matrix baseMatrix = new Matrix();
+		float dx = 0;
+		float dy = 0;
+
+		if (scale < 1f)
+			mUserMatrix.reset();
+		else if (scale > maxScale)
+			mUserMatrix.postScale(maxScale / scale, maxScale / scale,
+					getWidth() / 2f, getHeight() / 2f);
+
+		mSourceToView.set(mFitMatrix);
+		mSourceToView.postConcat(mUserMatrix);
+		mSourceToView.mapRect(bounds);
+
+		/* center the image along an axis it is smaller than, else pin edges */
+		if (bounds.width() <= getWidth())
+			dx = (getWidth() - bounds.width()) / 2 - bounds.left;
+		else if (bounds.left > 0)
+			dx = -bounds.left;
+		else if (bounds.right < getWidth())
+			dx = getWidth() - bounds.right;
+		if (bounds.height() <= getHeight())
+			dy = (getHeight() - bounds.height()) / 2 - bounds.top;
+		else if (bounds.top > 0)
+			dy = -bounds.top;
+		else if (bounds.bottom < getHeight())
+			dy = getHeight() - bounds.bottom;
+		mUserMatrix.postTranslate(dx, dy);
+		mSourceToView.postTranslate(dx, dy);
+
+		/* the sampled image covers the original at a lower resolution */
+		if (mBase != null) {
+			baseMatrix.setScale(mSourceWidth / (float) mBase.getWidth(),
+					mSourceHeight / (float) mBase.getHeight());
+			baseMatrix.postConcat(mSourceToView);
+			setImageMatrix(baseMatrix);
+		}
+		invalidate();
+	}
+
+	/**
+	 * Draws every visible tile that has been decoded, and queues decodes for
+	 * the rest. Tiles are decoded at the largest sample size that is still at
+	 * least as sharp as the screen. If that is no sharper than the sampled
+	 * image, no tiles are needed
+	 */
+	private void drawTiles(Canvas canvas) {
+		float viewPxPerSourcePx = mFitScale * getUserScale();
+		int sample = 1;
+		int tileSpan;
+		Matrix inverse = new Matrix();
+		Matrix tileMatrix = new Matrix();
+		RectF visible = new RectF(0, 0, getWidth(), getHeight());
+		Set<String> needed = new HashSet<String>();
+		Rect region;
+		Bitmap tile;
+		String key;
+
+		while (sample * 2 * viewPxPerSourcePx <= 1)
+			sample *= 2;
+		if (mBase == null || sample >= mSourceWidth / mBase.getWidth())
+			return;
+
+		if (mSourceToView.invert(inverse) == false)
+			return;
+		inverse.mapRect(visible);
+		tileSpan = TILE_SIZE * sample;
+
+		for (int top = Math.max(0, (int) visible.top / tileSpan * tileSpan); top < Math
+				.min(mSourceHeight, visible.bottom); top += tileSpan) {
+			for (int left = Math.max(0, (int) visible.left / tileSpan
+					* tileSpan); left < Math.min(mSourceWidth, visible.right); left += tileSpan) {
+				region = new Rect(left, top, Math.min(left + tileSpan,
+						mSourceWidth), Math.min(top + tileSpan, mSourceHeight));
+				key = getTileKey(region, sample);
+				needed.add(key);
+				tile = mTiles.get(key);
+				if (tile == null) {
+					requestTile(key, region, sample);
+					continue;
+				}
+				tileMatrix.setScale(region.width() / (float) tile.getWidth(),
+						region.height() / (float) tile.getHeight());
+				tileMatrix.postTranslate(left, top);
+				tileMatrix.postConcat(mSourceToView);
+				canvas.drawBitmap(tile, tileMatrix, null);
+			}
+		}
+		cancelQueuedTiles(needed);
+	}
+
+	private static String getTileKey(Rect region, int sample) {
+		return sample + ":" + region.left + ":" + region.top;
+	}
+
+	/**
+	 * Queues a tile decode, unless one is already queued
+	 */
+	private void requestTile(String key, Rect region, int sample) {
+		TileLoader loader;
+
+		if (mPendingTiles.add(key) == false)
+			return;
+		loader = new TileLoader(key, region, sample);
+		TaskScheduler.FULL_SCREEN.execute(loader, loader,
+				PriorityExecutor.PRIORITY_HIGH);
+	}
+
+	/**
+	 * Drops queued decodes of tiles that are no longer needed, because they
+	 * have scrolled out of view, or are for a zoom level the user has left
+	 * 
+	 * @param needed
+	 *            The tiles to keep, or null to drop every queued decode
+	 */
+	private void cancelQueuedTiles(final Set<String> needed) {
+		TaskScheduler.FULL_SCREEN.cancelMatching(new PriorityExecutor.KeyFilter() {
+			@Override
+			public boolean matches(Object key) {
+				TileLoader loader;
+				if (key instanceof TileLoader == false)
+					return false;
+				loader = (TileLoader) key;
+				if (loader.isOwnedBy(TiledImageView.this) == false
+						|| (needed != null && needed.contains(loader.mKey)))
+					return false;
+				mPendingTiles.remove(loader.mKey);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Decodes one tile of the original image, and hands it to the view on the
+	 * main thread
+	 */
+	private class TileLoader implements Runnable {
+		final String mKey;
+		final Rect mRegion;
+		final int mSample;
+		final BitmapRegionDecoder mTileDecoder = mDecoder;
+		final int mTileGeneration = mGeneration;
+
+		TileLoader(String key, Rect region, int sample) {
+			mKey = key;
+			mRegion = region;
+			mSample = sample;
+		}
+
+		boolean isOwnedBy(TiledImageView view) {
+			return TiledImageView.this == view;
+		}
+
+		@Override
+		public void run() {
+			final Bitmap tile;
+			BitmapFactory.Options opts = new BitmapFactory.Options();
+
+			opts.inSampleSize = mSample;
+			synchronized (mTileDecoder) {
+				tile = mTileDecoder.isRecycled() ? null : mTileDecoder
+						.decodeRegion(mRegion, opts);
+			}
+			post(new Runnable() {
+				public void run() {
+					if (mTileGeneration != mGeneration)
+						return;
+					mPendingTiles.remove(mKey);
+					if (tile != null) {
+						mTiles.put(mKey, tile);
+						invalidate();
+					}
+				}
+			});
+		}
+	}
+
+	private class ScaleListener extends
+			ScaleGestureDetector.SimpleOnScaleGestureListener {
+		@Override
+		public boolean onScale(ScaleGestureDetector detector) {
+			mUserMatrix.postScale(detector.getScaleFactor(),
+					detector.getScaleFactor(), detector.getFocusX(),
+					detector.getFocusY());
+			applyMatrix();
+			return true;
+		}
+	}
+
+	private class PanListener extends GestureDetector.SimpleOnGestureListener {
+		@Override
+		public boolean onScroll(MotionEvent e1, MotionEvent e2,
+				float distanceX, float distanceY) {
+			if (isZoomed() == false || mScaleDetector.isInProgress())
+				return false;
+			mUserMatrix.postTranslate(-distanceX, -distanceY);
+			applyMatrix();
+			return true;
+		}
+
+		@Override
+		public boolean onDoubleTap(MotionEvent e) {
+			if (isZoomed())
+				mUserMatrix.reset();
+			else
+				mUserMatrix.postScale(DOUBLE_TAP_ZOOM, DOUBLE_TAP_ZOOM,
+						e.getX(), e.getY());
+			applyMatrix();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.iodice.mmsexport;
+
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Decides, per zip entry, whether the entry's payload should be run through
+ * the Deflater or written as is. Formats that are already compressed (JPEG,
+ * PNG, GIF, ...) gain almost nothing from deflating, so they are STORED. For
+ * content types that are not known up front, a small sample of the payload
+ * is deflated and the measured ratio decides
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ZipCompressionPolicy {
+	/**
+	 * {@link ZipCompressionPolicy#METHOD_UNKNOWN} Returned by
+	 * {@link ZipCompressionPolicy#getMethodForContentType(String)} when the
+	 * content type alone is not enough to choose a method
+	 */
+	public static final int METHOD_UNKNOWN = -1;
+
+	/**
+	 * {@link ZipCompressionPolicy#PROBE_SIZE} The number of leading bytes of
+	 * a payload that are deflated to measure its compressibility
+	 */
+	private static final int PROBE_SIZE = 64 * 1024;
+
+	/**
+	 * {@link ZipCompressionPolicy#MIN_USEFUL_RATIO} If a probe compresses to
+	 * more than this fraction of its original size, deflating is not worth
+	 * the CPU time
+	 */
+	private static final double MIN_USEFUL_RATIO = 0.9;
+
+	/**
+	 * Content types whose payloads are already compressed
+	 */
+	private static final String[] COMPRESSED_TYPES = new String[] {
+			"image/jpeg", "image/jpg", "image/png", "image/gif", "image/webp",
+			"video/", "audio/", "application/zip", };
+
+	/**
+	 * Content types whose payloads are known to shrink when deflated
+	 */
+	private static final String[] COMPRESSIBLE_TYPES = new String[] {
+			"image/bmp", "image/x-ms-bmp", "text/", "application/smil", };
+
+	/**
+	 * Chooses a compression method based on a content type alone
+	 * 
+	 * @param contentType
+	 *            A MIME type, i.e., "image/jpeg". Entries ending in '/' in
+	 *            the type tables match a whole family of types
+	 * @return {@link ZipEntry#STORED}, {@link ZipEntry#DEFLATED}, or
+	 *         {@link ZipCompressionPolicy#METHOD_UNKNOWN} if the type should
+	 *         be probed
+	 */
+	public static int getMethodForContentType(String contentType) {
+		if (contentType == null)
+			return METHOD_UNKNOWN;
+		contentType = contentType.toLowerCase(Locale.US);
+		if (matches(contentType, COMPRESSED_TYPES))
+			return ZipEntry.STORED;
+		if (matches(contentType, COMPRESSIBLE_TYPES))
+			return ZipEntry.DEFLATED;
+		return METHOD_UNKNOWN;
+	}
+
+	/**
+	 * Chooses a compression method for a payload held in memory
+	 * 
+	 * @param contentType
+	 *            The MIME type of the payload. May be null
+	 * @param data
+	 *            The payload
+	 * @param length
+	 *            The number of valid bytes in data
+	 * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+	 */
+	public static int getMethod(String contentType, byte[] data, int length) {
+		int method = getMethodForContentType(contentType);
+		if (method != METHOD_UNKNOWN)
+			return method;
+		return probe(data, Math.min(length, PROBE_SIZE));
+	}
+
+	/**
+	 * Deflates a sample and measures how well it compressed
+	 * 
+	 * @param sample
+	 *            The bytes to test
+	 * @param length
+	 *            The number of valid bytes in sample
+	 * @return {@link ZipEntry#DEFLATED} if the sample shrinks enough to be
+	 *         worth it, {@link ZipEntry#STORED} otherwise
+	 */
+	private static int probe(byte[] sample, int length) {
+		byte[] scratch;
+		Deflater deflater;
+		long compressed = 0;
+
+		if (length == 0)
+			return ZipEntry.STORED;
+
+		scratch = new byte[4096];
+		deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			deflater.setInput(sample, 0, length);
+			deflater.finish();
+			while (deflater.finished() == false)
+				compressed += deflater.deflate(scratch);
+		} finally {
+			deflater.end();
+		}
+
+		if (compressed < length * MIN_USEFUL_RATIO)
+			return ZipEntry.DEFLATED;
+		return ZipEntry.STORED;
+	}
+
+	private static boolean matches(String contentType, String[] types) {
+		for (String type : types) {
+			if (type.endsWith("/") ? contentType.startsWith(type)
+					: contentType.equals(type))
+				return true;
+		}
+		return false;
+	}
+}
@@ -1,12 +1,27 @@
 package com.iodice.mmsexport;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.ZipOutputStream;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
 import android.support.v4.content.FileProvider;
 
 /**
@@ -15,13 +30,51 @@ import android.support.v4.content.FileProvider;
  * {@code ZipFileProvider#setFilesDir(String)} prior to serving content using
  * the {@code ZipFileProvider#openFile(Uri, String)} method
  * 
+ * The provider can also serve a zip file that does not exist yet. A list of
+ * images registered with {@code ZipFileProvider#registerStream} is zipped on
+ * a background thread straight into a pipe, and the receiving app reads the
+ * other end of the pipe while the archive is being produced
+ * 
  * @author Nicholas M. Iodice
  * 
  */
 public class ZipFileProvider extends FileProvider {
 
+	/**
+	 * {@link ZipFileProvider#AUTHORITY} The authority this provider is
+	 * registered under in the manifest
+	 */
+	public static final String AUTHORITY = "com.iodice.mmsexport.ZipFileProvider";
+
+	/**
+	 * {@link ZipFileProvider#STREAM_PATH} The first path segment of URIs that
+	 * are served by streaming
+	 */
+	private static final String STREAM_PATH = "stream";
+
+	/**
+	 * {@link ZipFileProvider#MAX_PENDING_STREAMS} The number of registered
+	 * streams to remember. Receivers may open a stream more than once, so
+	 * streams are not forgotten when they are opened
+	 */
+	private static final int MAX_PENDING_STREAMS = 4;
+
 	static String filesDir;
 
+	/**
+	 * {@link ZipFileProvider#sPendingStreams} Image URIs to zip, keyed by the
+	 * token in the stream URI
+	 */
+	private static final Map<String, List<String>> sPendingStreams = new LinkedHashMap<String, List<String>>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, List<String>> eldest) {
+			return size() > MAX_PENDING_STREAMS;
+		}
+	};
+
 	/**
 	 * Set the file path used to look for a file in. The file path should not
 	 * contiain a trailing '/'
@@ -32,6 +85,49 @@ public class ZipFileProvider extends FileProvider {
 		filesDir = fp;
 	}
 
+	/**
+	 * Registers a list of images to be served as a zip file that is produced
+	 * while it is read. Nothing is written to disk
+	 * 
+	 * @param context
+	 *            The context used to look up the archive's file name
+	 * @param uriStrings
+	 *            String representations of URIs to the images
+	 * @return A URI that can be shared with other apps
+	 */
+	public static Uri registerStream(Context context, List<String> uriStrings) {
+		String token = UUID.randomUUID().toString();
+
+		synchronized (sPendingStreams) {
+			sPendingStreams.put(token, new ArrayList<String>(uriStrings));
+		}
+		return new Uri.Builder().scheme("content").authority(AUTHORITY)
+				.appendPath(STREAM_PATH).appendPath(token)
+				.appendPath(context.getString(R.string.zip_image_file_name))
+				.build();
+	}
+
+	/**
+	 * Returns true if the URI has the shape of a stream URI, whether or not
+	 * its stream is still registered
+	 */
+	private static boolean isStreamUri(Uri uri) {
+		List<String> segments = uri.getPathSegments();
+		return segments.size() >= 2 && STREAM_PATH.equals(segments.get(0));
+	}
+
+	/**
+	 * Returns the images registered for a stream URI, or null if the URI is
+	 * not a stream URI, or its stream has been forgotten
+	 */
+	private static List<String> getStream(Uri uri) {
+		if (isStreamUri(uri) == false)
+			return null;
+		synchronized (sPendingStreams) {
+			return sPendingStreams.get(uri.getPathSegments().get(1));
+		}
+	}
+
 	/**
 	 * The caller MUST set the file path using
 	 * {@code ZipFileProvider#setFilesDir(String)} prior to serving content
@@ -51,11 +147,133 @@ public class ZipFileProvider extends FileProvider {
 		String uriPath = uri.toString();
 		String fileName = uriPath.substring(uriPath.lastIndexOf('/') + 1);
 		File file = new File(filesDir + "/" + fileName);
+		List<String> stream;
 
+		/*
+		 * a stream that has been forgotten must not fall through to a file of
+		 * the same name, which may be stale or only partly written
+		 */
+		if (isStreamUri(uri)) {
+			stream = getStream(uri);
+			if (stream == null)
+				throw new FileNotFoundException("No such stream: " + uri);
+			return openStream(STREAM_PATH + "/" + uri.getPathSegments().get(1),
+					stream);
+		}
 		if (mode.toLowerCase(Locale.US).contains("r"))
 			return ParcelFileDescriptor.open(file,
 					ParcelFileDescriptor.MODE_READ_ONLY);
 		else
 			return super.openFile(uri, mode);
 	}
+
+	/**
+	 * Creates a pipe and starts zipping images into its write end. The write
+	 * end is always closed once zipping stops. If the archive is incomplete,
+	 * the receiving app is told so where the platform allows, instead of
+	 * seeing a normal end of file. Once the archive is complete, its images
+	 * are recorded in the {@link ExportManifest}, like those of an archive
+	 * written to disk
+	 * 
+	 * @param archive
+	 *            Names the stream in the manifest. Unique to each registered
+	 *            stream
+	 * @param uriStrings
+	 *            String representations of URIs to the images
+	 * @return The read end of the pipe
+	 * @throws FileNotFoundException
+	 *             If the pipe could not be created
+	 */
+	private ParcelFileDescriptor openStream(final String archive,
+			final List<String> uriStrings) throws FileNotFoundException {
+		final ParcelFileDescriptor[] pipe;
+		final Context context = getContext();
+
+		try {
+			pipe = ParcelFileDescriptor.createPipe();
+		} catch (IOException e) {
+			throw new FileNotFoundException(e.getMessage());
+		}
+
+		new Thread(new Runnable() {
+			public void run() {
+				ZipOutputStream zos = new ZipOutputStream(
+						new BufferedOutputStream(
+								new ParcelFileDescriptor.AutoCloseOutputStream(
+										pipe[1])));
+				boolean complete = false;
+				long[] hashes;
+
+				try {
+					new ExportPipeline(uriStrings, null, true, context)
+							.writeTo(zos, null);
+					/* also closes the write end of the pipe */
+					zos.close();
+					complete = true;
+					/* entries are not kept, so there is no hash to record */
+					hashes = new long[uriStrings.size()];
+					Arrays.fill(hashes, ExportManifest.NO_HASH);
+					ExportManifest.getInstance(context).record(uriStrings,
+							hashes, archive);
+				} catch (IOException e) {
+					/* most likely, the receiver closed its end of the pipe */
+					e.printStackTrace();
+				} catch (RuntimeException e) {
+					/* this thread has no one to report to */
+					e.printStackTrace();
+				} finally {
+					if (complete == false)
+						closeWithError(pipe[1], "Streaming export stopped");
+				}
+			}
+		}).start();
+		return pipe[0];
+	}
+
+	/**
+	 * Closes the write end of a pipe so that the reader sees an error. Before
+	 * KitKat the reader only sees the end of the file, but the archive then
+	 * has no central directory, so it does not open as a zip file
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static void closeWithError(ParcelFileDescriptor pfd, String msg) {
+		try {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+				pfd.closeWithError(msg);
+			else
+				pfd.close();
+		} catch (IOException e) {
+		}
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection,
+			String[] selectionArgs, String sortOrder) {
+		MatrixCursor cursor;
+		Object[] row;
+
+		if (isStreamUri(uri) == false)
+			return super.query(uri, projection, selection, selectionArgs,
+					sortOrder);
+
+		/* the size of a streamed archive is not known ahead of time */
+		if (projection == null)
+			projection = new String[] { OpenableColumns.DISPLAY_NAME,
+					OpenableColumns.SIZE };
+		cursor = new MatrixCursor(projection, 1);
+		row = new Object[projection.length];
+		for (int i = 0; i < projection.length; i++) {
+			if (OpenableColumns.DISPLAY_NAME.equals(projection[i]))
+				row[i] = uri.getLastPathSegment();
+		}
+		cursor.addRow(row);
+		return cursor;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		if (isStreamUri(uri))
+			return "application/zip";
+		return super.getType(uri);
+	}
 }
@@ -0,0 +1,135 @@
+package com.iodice.mmsexport;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+/**
+ * Checks that {@link ImageIndex} asks the mms provider for a thread's image
+ * parts once per chunk of messages, rather than once per message, and only
+ * for messages it has not indexed yet, so a stopped scan is picked up where
+ * it left off without finding any image twice
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ImageIndexTest extends AndroidTestCase {
+	private static final long THREAD_ID = 7;
+	private static final int MESSAGE_COUNT = 1234;
+
+	private FakeMmsProvider mProvider;
+	private MockContentResolver mResolver;
+	private ImageIndex mIndex;
+	private final List<ImageSession> mSessions = new ArrayList<ImageSession>();
+
+	/**
+	 * Serves a thread of messages with one image part each, and counts the
+	 * queries made to the part table
+	 */
+	private static class FakeMmsProvider extends MockContentProvider {
+		private static final String PART_PATH = "/part";
+		private static final String IN = "mid IN (";
+
+		int mPartQueries = 0;
+
+		@Override
+		public Cursor query(Uri uri, String[] projection, String selection,
+				String[] selectionArgs, String sortOrder) {
+			MatrixCursor cursor;
+			String ids;
+
+			if (PART_PATH.equals(uri.getPath()) == false) {
+				cursor = new MatrixCursor(new String[] { "_id", "date" });
+				for (long mid = 1; mid <= MESSAGE_COUNT; mid++)
+					cursor.addRow(new Object[] { mid, mid * 1000 });
+				return cursor;
+			}
+
+			mPartQueries++;
+			cursor = new MatrixCursor(new String[] { "_id", "mid", "ct" });
+			ids = selection.substring(selection.indexOf(IN) + IN.length(),
+					selection.lastIndexOf(')'));
+			for (String mid : ids.split(","))
+				cursor.addRow(new Object[] { Long.parseLong(mid) * 10,
+						Long.parseLong(mid), "image/jpeg" });
+			return cursor;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mProvider = new FakeMmsProvider();
+		mResolver = new MockContentResolver();
+		mResolver.addProvider("mms", mProvider);
+		/* an index kept in memory starts out empty */
+		mIndex = new ImageIndex(getContext(), null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (ImageSession session : mSessions)
+			ImageSession.release(session.getHandle());
+		mIndex.close();
+		super.tearDown();
+	}
+
+	public void testFirstScanQueriesOncePerChunk() {
+		ImageSession session = scan();
+		int chunks = (MESSAGE_COUNT + ImageIndex.PART_QUERY_CHUNK_SIZE - 1)
+				/ ImageIndex.PART_QUERY_CHUNK_SIZE;
+
+		assertEquals(chunks, mProvider.mPartQueries);
+		assertEquals(MESSAGE_COUNT, session.size());
+	}
+
+	public void testRescanUsesTheIndex() {
+		ImageSession session;
+
+		scan();
+		mProvider.mPartQueries = 0;
+		session = scan();
+
+		assertEquals(0, mProvider.mPartQueries);
+		assertEquals(MESSAGE_COUNT, session.size());
+	}
+
+	public void testRescanAfterStoppingFindsEachImageOnce() {
+		HashSet<Long> ids = new HashSet<Long>();
+		ImageSession session = ImageSession.create();
+
+		mSessions.add(session);
+		/* stop after the first chunk, as a cancelled scan does */
+		mIndex.scan(mResolver, THREAD_ID, session,
+				new ProgressUpdateCallback() {
+					@Override
+					public boolean respondToProgressUpdate(int complete,
+							int total) {
+						return false;
+					}
+				});
+		assertEquals(ImageIndex.PART_QUERY_CHUNK_SIZE, session.size());
+
+		session = scan();
+		for (int i = 0; i < session.size(); i++)
+			ids.add(session.getId(i));
+
+		assertEquals(MESSAGE_COUNT, session.size());
+		assertEquals(MESSAGE_COUNT, ids.size());
+	}
+
+	private ImageSession scan() {
+		ImageSession session = ImageSession.create();
+
+		mSessions.add(session);
+		mIndex.scan(mResolver, THREAD_ID, session, null);
+		return session;
+	}
+}
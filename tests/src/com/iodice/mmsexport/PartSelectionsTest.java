@@ -0,0 +1,69 @@
+package com.iodice.mmsexport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link PartSelections} covers every message exactly once, in
+ * order, with as few selections as its chunk size allows
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class PartSelectionsTest extends TestCase {
+	private static final String PREFIX = "ct LIKE 'image/%' AND mid IN (";
+	private static final int CHUNK_SIZE = 500;
+
+	public void testNoMessagesMakesNoQueries() {
+		assertEquals(0, PartSelections.build(getMsgIDs(0), CHUNK_SIZE).size());
+	}
+
+	public void testOneQueryPerChunk() {
+		assertEquals(1, PartSelections.build(getMsgIDs(1), CHUNK_SIZE).size());
+		assertEquals(1, PartSelections.build(getMsgIDs(500), CHUNK_SIZE)
+				.size());
+		assertEquals(2, PartSelections.build(getMsgIDs(501), CHUNK_SIZE)
+				.size());
+		assertEquals(5, PartSelections.build(getMsgIDs(2345), CHUNK_SIZE)
+				.size());
+	}
+
+	public void testEveryMessageCoveredOnceInOrder() {
+		List<String> msgIDs = getMsgIDs(1234);
+		List<String> covered = new ArrayList<String>();
+		List<String> selections = PartSelections.build(msgIDs, CHUNK_SIZE);
+		String ids;
+
+		for (int chunk = 0; chunk < selections.size(); chunk++) {
+			assertTrue(selections.get(chunk).startsWith(PREFIX));
+			assertTrue(selections.get(chunk).endsWith(")"));
+			ids = selections.get(chunk).substring(PREFIX.length(),
+					selections.get(chunk).length() - 1);
+			for (String id : ids.split(","))
+				covered.add(id);
+			assertEquals(covered.size(),
+					PartSelections.getChunkEnd(chunk, CHUNK_SIZE, 1234));
+		}
+		assertEquals(msgIDs, covered);
+	}
+
+	public void testRejectsEmptyChunks() {
+		try {
+			PartSelections.build(getMsgIDs(1), 0);
+			fail("a chunk size of 0 was accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * @return Message IDs as the mms provider would return them, in order
+	 */
+	private static List<String> getMsgIDs(int count) {
+		List<String> msgIDs = new ArrayList<String>();
+		for (int i = 0; i < count; i++)
+			msgIDs.add(String.valueOf(1000 + i * 3));
+		return msgIDs;
+	}
+}
@@ -0,0 +1,189 @@
+package com.iodice.mmsexport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link ResumableZipWriter} resumes only what its journal vouches
+ * for, and that the archives it finishes can be read by
+ * {@link java.util.zip.ZipFile}
+ * 
+ * @author Nicholas M. Iodice
+ * 
+ */
+public class ResumableZipWriterTest extends TestCase {
+	private static final String KEY = "export-key";
+
+	private final byte[] mText = "hello hello hello hello".getBytes();
+	private final byte[] mNoise = new byte[10000];
+	private File mDir;
+	private File mZip;
+	private File mJournal;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		new Random(1).nextBytes(mNoise);
+		mDir = File.createTempFile("zipwriter", "");
+		mDir.delete();
+		mDir.mkdir();
+		mZip = new File(mDir, "images.zip");
+		mJournal = new File(mDir, "images.zip.journal");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ResumableZipWriter.delete(mZip);
+		mDir.delete();
+		super.tearDown();
+	}
+
+	public void testFinishWritesReadableArchive() throws IOException {
+		ResumableZipWriter writer = new ResumableZipWriter(mZip, KEY);
+
+		writer.writeEntry("a.txt", mText, ZipEntry.DEFLATED);
+		writer.writeEntry("b.bin", mNoise, ZipEntry.STORED);
+		writer.finish();
+
+		assertFalse(mJournal.exists());
+		assertEntries(readArchive(), "a.txt", mText, "b.bin", mNoise);
+	}
+
+	public void testStreamedEntriesAreReadable() throws IOException {
+		ResumableZipWriter writer = new ResumableZipWriter(mZip, KEY);
+
+		writer.writeEntry("a.txt", new ByteArrayInputStream(mText),
+				ZipEntry.DEFLATED);
+		writer.writeEntry("b.bin", new ByteArrayInputStream(mNoise),
+				ZipEntry.STORED);
+		writer.close();
+
+		/* streamed entries are vouched for like any other */
+		writer = new ResumableZipWriter(mZip, KEY);
+		assertEquals(2, writer.getEntryCount());
+		writer.writeEntry("c.bin", new ByteArrayInputStream(mNoise),
+				ZipEntry.DEFLATED);
+		writer.finish();
+
+		assertEntries(readArchive(), "a.txt", mText, "b.bin", mNoise, "c.bin",
+				mNoise);
+	}
+
+	public void testResumeDropsTrailingGarbage() throws IOException {
+		ResumableZipWriter writer = new ResumableZipWriter(mZip, KEY);
+		RandomAccessFile file;
+
+		writer.writeEntry("a.txt", mText, ZipEntry.DEFLATED);
+		writer.writeEntry("b.bin", mNoise, ZipEntry.STORED);
+		writer.close();
+
+		/* an entry that was being written when the process died */
+		file = new RandomAccessFile(mZip, "rw");
+		file.seek(file.length());
+		file.write(new byte[123]);
+		file.close();
+
+		writer = new ResumableZipWriter(mZip, KEY);
+		assertEquals(2, writer.getEntryCount());
+		writer.writeEntry("c.txt", mText, ZipEntry.DEFLATED);
+		writer.finish();
+
+		assertEntries(readArchive(), "a.txt", mText, "b.bin", mNoise, "c.txt",
+				mText);
+	}
+
+	public void testResumeIgnoresJournalLineCutShort() throws IOException {
+		ResumableZipWriter writer = new ResumableZipWriter(mZip, KEY);
+		RandomAccessFile journal;
+
+		writer.writeEntry("a.txt", mText, ZipEntry.DEFLATED);
+		writer.writeEntry("b.bin", mNoise, ZipEntry.STORED);
+		writer.close();
+
+		/* the last record was only partly written */
+		journal = new RandomAccessFile(mJournal, "rw");
+		journal.setLength(journal.length() - 5);
+		journal.close();
+
+		writer = new ResumableZipWriter(mZip, KEY);
+		assertEquals(1, writer.getEntryCount());
+		writer.writeEntry("b.bin", mNoise, ZipEntry.STORED);
+		writer.finish();
+
+		assertEntries(readArchive(), "a.txt", mText, "b.bin", mNoise);
+	}
+
+	public void testDifferentKeyStartsOver() throws IOException {
+		ResumableZipWriter writer = new ResumableZipWriter(mZip, KEY);
+
+		writer.writeEntry("a.txt", mText, ZipEntry.DEFLATED);
+		writer.close();
+
+		writer = new ResumableZipWriter(mZip, "another-export");
+		assertEquals(0, writer.getEntryCount());
+		assertEquals(0, mZip.length());
+		writer.writeEntry("b.bin", mNoise, ZipEntry.STORED);
+		writer.finish();
+
+		assertEntries(readArchive(), "b.bin", mNoise);
+	}
+
+	/**
+	 * @param expected
+	 *            Alternating entry names and contents, in entry order
+	 */
+	private static void assertEntries(Map<String, byte[]> entries,
+			Object... expected) {
+		int i = 0;
+
+		assertEquals(expected.length / 2, entries.size());
+		for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+			assertEquals(expected[i], entry.getKey());
+			assertTrue(Arrays.equals((byte[]) expected[i + 1],
+					entry.getValue()));
+			i += 2;
+		}
+	}
+
+	/**
+	 * @return The contents of each entry in the archive, in entry order
+	 */
+	private Map<String, byte[]> readArchive() throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+		ZipFile zip = new ZipFile(mZip);
+		Enumeration<? extends ZipEntry> it = zip.entries();
+		ByteArrayOutputStream data;
+		byte[] buffer = new byte[4096];
+		InputStream is;
+		ZipEntry entry;
+		int read;
+
+		try {
+			while (it.hasMoreElements()) {
+				entry = it.nextElement();
+				data = new ByteArrayOutputStream();
+				is = zip.getInputStream(entry);
+				while ((read = is.read(buffer)) != -1)
+					data.write(buffer, 0, read);
+				is.close();
+				entries.put(entry.getName(), data.toByteArray());
+			}
+		} finally {
+			zip.close();
+		}
+		return entries;
+	}
+}